@@ -27,6 +27,7 @@ import com.cloudera.science.ml.client.cmd.Command;
 import com.cloudera.science.ml.client.cmd.CommandException;
 import com.cloudera.science.ml.client.cmd.KMeansAssignmentCommand;
 import com.cloudera.science.ml.client.cmd.KMeansCommand;
+import com.cloudera.science.ml.client.cmd.KMeansLloydsCommand;
 import com.cloudera.science.ml.client.cmd.KMeansSketchCommand;
 import com.cloudera.science.ml.client.cmd.NormalizeCommand;
 import com.cloudera.science.ml.client.cmd.SampleCommand;
@@ -45,6 +46,7 @@ public class Main extends Configured implements Tool {
       .put("kassign", new KMeansAssignmentCommand())
       .put("ksketch", new KMeansSketchCommand())
       .put("kmeans", new KMeansCommand())
+      .put("klloyds", new KMeansLloydsCommand())
       .build();
   
   public Main() {
@@ -35,9 +35,12 @@ import com.cloudera.science.ml.client.params.InputParameters;
 import com.cloudera.science.ml.client.params.PipelineParameters;
 import com.cloudera.science.ml.client.util.AvroIO;
 import com.cloudera.science.ml.core.records.Record;
+import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.VectorConvert;
 import com.cloudera.science.ml.kmeans.parallel.KMeansParallel;
+import com.cloudera.science.ml.parallel.sample.ReservoirSampling;
 import com.cloudera.science.ml.parallel.types.MLRecords;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 @Parameters(commandDescription =
@@ -62,6 +65,22 @@ public class KMeansAssignmentCommand implements Command {
       description = "The delimiter to use for the CSV assignment output")
   private String outputDelim = ",";
   
+  @Parameter(names = "--approx-probes",
+      description = "If positive, find the closest centers approximately by only scanning this many cells of clustered centers for each point (more probes give a higher recall)")
+  private int approxProbes = 0;
+  
+  @Parameter(names = "--recall-sample-size",
+      description = "The number of points to sample for measuring the recall of the approximate assignments")
+  private int recallSampleSize = 1000;
+  
+  @Parameter(names = "--center-shards",
+      description = "If greater than one, split the centers into this many shards that are each scored against every point in a separate task, for sets of centers that do not fit in the memory of a single task")
+  private int centerShards = 1;
+  
+  @Parameter(names = "--partitions-per-shard",
+      description = "The number of reduce partitions to spread the points scored against each shard of the centers over")
+  private int partitionsPerShard = KMeansParallel.DEFAULT_PARTITIONS_PER_SHARD;
+  
   @ParametersDelegate
   private InputParameters inputParams = new InputParameters();
   
@@ -70,6 +89,12 @@ public class KMeansAssignmentCommand implements Command {
   
   @Override
   public int execute(Configuration conf) throws Exception {
+    if (centerShards < 1) {
+      throw new CommandException("--center-shards must be at least one");
+    }
+    if (partitionsPerShard < 1) {
+      throw new CommandException("--partitions-per-shard must be at least one");
+    }
     Pipeline p = pipelineParams.create(KMeansAssignmentCommand.class, conf);
     PCollection<Vector> input = inputParams.getVectors(p);
     List<MLCenters> centers = AvroIO.read(MLCenters.class, new File(centersFile));
@@ -84,8 +109,16 @@ public class KMeansAssignmentCommand implements Command {
 
     PType<Record> recordType = MLRecords.csvRecord(WritableTypeFamily.getInstance(),
         outputDelim);
-    PCollection<Record> assigned = kmp.computeClusterAssignments(input,
-        Lists.transform(centers, VectorConvert.TO_CENTERS), recordType);
+    List<Centers> assignCenters = ImmutableList.copyOf(
+        Lists.transform(centers, VectorConvert.TO_CENTERS));
+    if (approxProbes > 0 && recallSampleSize > 0) {
+      Iterable<Vector> sample = ReservoirSampling.sample(input, recallSampleSize).materialize();
+      double recall = kmp.getAssignmentRecall(sample, assignCenters, approxProbes);
+      System.out.println(String.format("Approximate assignment recall with %d probes: %.4f",
+          approxProbes, recall));
+    }
+    PCollection<Record> assigned = kmp.computeClusterAssignments(input, assignCenters,
+        recordType, approxProbes, centerShards, partitionsPerShard);
     p.write(assigned, To.textFile(assignmentsPath));
     p.done();
     return 0;
@@ -15,8 +15,14 @@
 package com.cloudera.science.ml.client.cmd;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.mahout.math.Vector;
@@ -33,9 +39,13 @@ import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.VectorConvert;
 import com.cloudera.science.ml.core.vectors.Weighted;
 import com.cloudera.science.ml.kmeans.core.KMeans;
+import com.cloudera.science.ml.kmeans.core.KMeansAlgorithm;
 import com.cloudera.science.ml.kmeans.core.KMeansInitStrategy;
 import com.cloudera.science.ml.kmeans.core.KMeansEvaluation;
 import com.cloudera.science.ml.kmeans.core.StoppingCriteria;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 @Parameters(commandDescription = "Executes k-means++ on Avro vectors stored on the local filesystem")
@@ -56,9 +66,33 @@ public class KMeansCommand implements Command {
   private int bestOf = 5;
   
   @Parameter(names = "--init-strategy",
-      description = "The k-means initialization strategy (PLUS_PLUS or RANDOM)")
+      description = "The k-means initialization strategy (PLUS_PLUS, AFK_MC2 or RANDOM)")
   private String initStrategyName = KMeansInitStrategy.PLUS_PLUS.name();
 
+  @Parameter(names = "--algorithm",
+      description = "The algorithm used to refine the initial centers " +
+          "(LLOYDS, HAMERLY, or MINI_BATCH)")
+  private String algorithmName = KMeansAlgorithm.LLOYDS.name();
+  
+  @Parameter(names = "--num-threads",
+      description = "The number of threads to split the points across on each Lloyd's iteration, " +
+          "which are divided between the runs when there are --parallel-runs, and to split " +
+          "the test points across when evaluating the centers")
+  private int numThreads = 1;
+  
+  @Parameter(names = "--batch-size",
+      description = "The number of points sampled on each iteration of the MINI_BATCH algorithm")
+  private int batchSize = KMeansAlgorithm.DEFAULT_BATCH_SIZE;
+  
+  @Parameter(names = "--warm-start",
+      description = "Seed each K in --clusters from the converged centers of the K before it")
+  private boolean warmStart = false;
+  
+  @Parameter(names = "--parallel-runs",
+      description = "The number of k-means runs (across values of K and best-of restarts) " +
+          "to execute at the same time")
+  private int parallelRuns = 1;
+  
   @Parameter(names = "--max-iterations",
       description = "The maximum number of Lloyd's iterations to run")
   private int maxLloydsIterations = 100;  
@@ -81,8 +115,16 @@ public class KMeansCommand implements Command {
   
   @Override
   public int execute(Configuration conf) throws Exception {
+    if (parallelRuns < 1 || numThreads < 1) {
+      throw new CommandException("--parallel-runs and --num-threads must be at least one");
+    }
     KMeansInitStrategy initStrategy = KMeansInitStrategy.valueOf(initStrategyName);
-    KMeans kmeans = new KMeans(initStrategy, getStoppingCriteria());
+    KMeansAlgorithm algorithm = KMeansAlgorithm.valueOf(algorithmName);
+    // Each concurrent run creates its own pool, so split the threads between them to keep
+    // the total number of threads from growing as parallelRuns * numThreads
+    int threadsPerRun = Math.max(1, numThreads / parallelRuns);
+    KMeans kmeans = new KMeans(initStrategy, getStoppingCriteria(), algorithm, threadsPerRun,
+        batchSize);
     
     List<MLWeightedCenters> mlwc = AvroIO.read(MLWeightedCenters.class, new File(sketchFile));
     List<List<Weighted<Vector>>> sketches = toSketches(mlwc);
@@ -90,40 +132,111 @@ public class KMeansCommand implements Command {
     for (int i = 0; i < sketches.size(); i++) {
       allPoints.addAll(sketches.get(i));
     }
-    List<Centers> centers = getClusters(allPoints, kmeans);
-    AvroIO.write(Lists.transform(centers, VectorConvert.FROM_CENTERS),
-        new File(centersOutputFile));
     
-    if (sketches.size() > 1) {
-      // Perform the prediction strength calculations on the folds
-      List<Weighted<Vector>> train = Lists.newArrayList();
-      for (int i = 0; i < sketches.size() - 1; i++) {
-        train.addAll(sketches.get(i));
+    // Every run of k-means is independent of the others, so they are all submitted up front
+    // with their own seeds, which are derived from the --seed in the order the runs are listed
+    ExecutorService executor = Executors.newFixedThreadPool(parallelRuns);
+    try {
+      Random seeds = randomParams.getRandom();
+      List<Future<List<Centers>>> all = getClusters(allPoints, kmeans, seeds, executor);
+      List<Future<List<Centers>>> trainRuns = null, testRuns = null;
+      List<Weighted<Vector>> test = null;
+      if (sketches.size() > 1) {
+        List<Weighted<Vector>> train = Lists.newArrayList();
+        for (int i = 0; i < sketches.size() - 1; i++) {
+          train.addAll(sketches.get(i));
+        }
+        test = sketches.get(sketches.size() - 1);
+        trainRuns = getClusters(train, kmeans, seeds, executor);
+        testRuns = getClusters(test, kmeans, seeds, executor);
       }
-      List<Weighted<Vector>> test = sketches.get(sketches.size() - 1);
-      List<Centers> trainCenters = getClusters(train, kmeans);
-      List<Centers> testCenters = getClusters(test, kmeans);
-      KMeansEvaluation eval = new KMeansEvaluation(testCenters, test, trainCenters);
-      System.out.println(
-          "ID,NumClusters,TestCost,TrainCost,PredStrength,StableClusters,StablePoints");
-      for (int i = 0; i < trainCenters.size(); i++) {
-        System.out.println(String.format("%d,%d,%.2f,%.2f,%.4f,%.2f,%.4f",
-            i, trainCenters.get(i).size(), eval.getTestCenterCosts().get(i),
-            eval.getTrainCosts().get(i), eval.getPredictionStrengths().get(i),
-            eval.getStableClusters().get(i), eval.getStablePoints().get(i)));
+      
+      List<Centers> centers = collect(all);
+      AvroIO.write(Lists.transform(centers, VectorConvert.FROM_CENTERS),
+          new File(centersOutputFile));
+      
+      if (sketches.size() > 1) {
+        // Perform the prediction strength calculations on the folds
+        List<Centers> trainCenters = collect(trainRuns);
+        List<Centers> testCenters = collect(testRuns);
+        // All of the runs are done by now, so the evaluation gets the whole thread budget
+        ExecutorService evalExecutor = numThreads > 1 ?
+            Executors.newFixedThreadPool(numThreads) : null;
+        KMeansEvaluation eval;
+        try {
+          eval = new KMeansEvaluation(testCenters, test, trainCenters, evalExecutor);
+        } finally {
+          if (evalExecutor != null) {
+            evalExecutor.shutdownNow();
+          }
+        }
+        System.out.println(
+            "ID,NumClusters,TestCost,TrainCost,PredStrength,StableClusters,StablePoints");
+        for (int i = 0; i < trainCenters.size(); i++) {
+          System.out.println(String.format("%d,%d,%.2f,%.2f,%.4f,%.2f,%.4f",
+              i, trainCenters.get(i).size(), eval.getTestCenterCosts().get(i),
+              eval.getTrainCosts().get(i), eval.getPredictionStrengths().get(i),
+              eval.getStableClusters().get(i), eval.getStablePoints().get(i)));
+        }
       }
+    } finally {
+      executor.shutdownNow();
     }
     
     return 0;
   }
   
-  private List<Centers> getClusters(List<Weighted<Vector>> sketch, KMeans kmeans) {
-    List<Centers> centers = Lists.newArrayList();
-    for (Integer nc : clusters) {
-      Random r = randomParams.getRandom();
+  private List<Future<List<Centers>>> getClusters(final List<Weighted<Vector>> sketch,
+      final KMeans kmeans, Random seeds, ExecutorService executor) {
+    List<Future<List<Centers>>> runs = Lists.newArrayList();
+    if (warmStart) {
+      // Each restart is a single run that sweeps across all of the values of K
+      int loops = Collections.max(clusters) == 1 ? 1 : bestOf;
+      for (int i = 0; i < loops; i++) {
+        final Random r = seeds == null ? null : new Random(seeds.nextLong());
+        runs.add(executor.submit(new Callable<List<Centers>>() {
+          @Override
+          public List<Centers> call() {
+            return kmeans.sweep(sketch, clusters, r);
+          }
+        }));
+      }
+      return runs;
+    }
+    for (final Integer nc : clusters) {
       int loops = nc == 1 ? 1 : bestOf;
       for (int i = 0; i < loops; i++) {
-        centers.add(kmeans.compute(sketch, nc, r));
+        final Random r = seeds == null ? null : new Random(seeds.nextLong());
+        runs.add(executor.submit(new Callable<List<Centers>>() {
+          @Override
+          public List<Centers> call() {
+            return ImmutableList.of(kmeans.compute(sketch, nc, r));
+          }
+        }));
+      }
+    }
+    return runs;
+  }
+  
+  private List<Centers> collect(List<Future<List<Centers>>> runs)
+      throws InterruptedException {
+    List<List<Centers>> results = Lists.newArrayList();
+    try {
+      for (Future<List<Centers>> f : runs) {
+        results.add(f.get());
+      }
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+    if (!warmStart) {
+      return Lists.newArrayList(Iterables.concat(results));
+    }
+    // Put the swept centers in the same order as the centers of the independent runs
+    List<Centers> centers = Lists.newArrayList();
+    for (int i = 0; i < clusters.size(); i++) {
+      int loops = clusters.get(i) == 1 ? 1 : bestOf;
+      for (int j = 0; j < loops; j++) {
+        centers.add(results.get(j).get(i));
       }
     }
     return centers;
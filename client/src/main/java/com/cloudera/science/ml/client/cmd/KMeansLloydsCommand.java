@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.client.cmd;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.crunch.PCollection;
+import org.apache.crunch.Pipeline;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.mahout.math.Vector;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
+import com.beust.jcommander.converters.CommaParameterSplitter;
+import com.beust.jcommander.converters.IntegerConverter;
+import com.cloudera.science.ml.avro.MLCenters;
+import com.cloudera.science.ml.client.params.InputParameters;
+import com.cloudera.science.ml.client.params.PipelineParameters;
+import com.cloudera.science.ml.client.util.AvroIO;
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.VectorConvert;
+import com.cloudera.science.ml.kmeans.core.StoppingCriteria;
+import com.cloudera.science.ml.kmeans.parallel.KMeansParallel;
+import com.google.common.collect.Lists;
+
+@Parameters(commandDescription =
+    "Refines a set of centers by running Lloyd's algorithm over the full dataset")
+public class KMeansLloydsCommand implements Command {
+
+  @Parameter(names = "--centers-file", required=true,
+      description = "The local Avro file containing the centers to be refined")
+  private String centersFile;
+  
+  @Parameter(names = "--center-ids",
+      description = "A CSV containing the indices of the centers to refine",
+      splitter = CommaParameterSplitter.class,
+      converter = IntegerConverter.class)
+  private List<Integer> centerIds = Lists.newArrayList();
+  
+  @Parameter(names = "--max-iterations",
+      description = "The maximum number of Lloyd's iterations to run")
+  private int maxLloydsIterations = 10;  
+
+  @Parameter(names = "--stopping-threshold",
+      description = "Stop the Lloyd's iterations if the delta between centers falls below this")
+  private double stoppingThreshold = 1e-4;  
+
+  @Parameter(names = "--output-file", required=true,
+      description = "A local file to store the refined centers into")
+  private String centersOutputFile;
+  
+  @ParametersDelegate
+  private InputParameters inputParams = new InputParameters();
+  
+  @ParametersDelegate
+  private PipelineParameters pipelineParams = new PipelineParameters();
+  
+  @Override
+  public int execute(Configuration conf) throws Exception {
+    Pipeline p = pipelineParams.create(KMeansLloydsCommand.class, conf);
+    PCollection<Vector> input = inputParams.getVectors(p);
+    List<MLCenters> centers = AvroIO.read(MLCenters.class, new File(centersFile));
+    if (!centerIds.isEmpty()) {
+      List<MLCenters> filter = Lists.newArrayListWithExpectedSize(centerIds.size());
+      for (int i = 0; i < centerIds.size(); i++) {
+        filter.add(centers.get(centerIds.get(i)));
+      }
+      centers = filter;
+    }
+    KMeansParallel kmp = new KMeansParallel();
+    StoppingCriteria stoppingCriteria = StoppingCriteria.or(
+        StoppingCriteria.threshold(stoppingThreshold),
+        StoppingCriteria.maxIterations(maxLloydsIterations));
+    List<Centers> refined = kmp.lloydsAlgorithm(input,
+        Lists.transform(centers, VectorConvert.TO_CENTERS), stoppingCriteria);
+    AvroIO.write(Lists.transform(refined, VectorConvert.FROM_CENTERS),
+        new File(centersOutputFile));
+    p.done();
+    return 0;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Refines a set of centers by running Lloyd's algorithm over the full dataset";
+  }
+
+}
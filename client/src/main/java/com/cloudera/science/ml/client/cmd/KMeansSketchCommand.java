@@ -51,10 +51,38 @@ public class KMeansSketchCommand implements Command {
       description = "The number of iterations of k-means|| to run")
   private int numIterations = 5;
   
-  @Parameter(names = "--points-per-iteration", required=true,
+  @Parameter(names = "--points-per-iteration",
       description = "The The number of sample points to select on each iteration")
   private int samplesPerIteration;
+  
+  @Parameter(names = "--target-sketch-size",
+      description = "Choose the points per iteration from the observed cost in order to reach this many points in each sketch")
+  private int targetSketchSize;
+  
+  @Parameter(names = "--max-sketch-size",
+      description = "Stop sampling points for a sketch once it has this many points")
+  private int maxSketchSize;
 
+  @Parameter(names = "--incremental",
+      description = "Carry each point's distance to the sketch over between iterations and only score it against new points")
+  private boolean incremental = false;
+  
+  @Parameter(names = "--cache-input",
+      description = "Write the input out once in a compact binary form and read that on every iteration")
+  private boolean cacheInput = false;
+  
+  @Parameter(names = "--min-cost-drop",
+      description = "Stop iterating early once the relative drop in the cost of every sketch falls below this")
+  private double minCostDrop = 0.0;
+  
+  @Parameter(names = "--min-cost-per-point",
+      description = "Stop iterating early once the cost of every sketch divided by the points per iteration falls below this")
+  private double minCostPerPoint = 0.0;
+  
+  @Parameter(names = "--checkpoint-file",
+      description = "A local file to save the state of the sketch to after every iteration, and to resume from if it exists (it is deleted once the sketch is done)")
+  private String checkpointFile;
+  
   @Parameter(names = "--output-file", required=true,
       description = "A local file to write the sketch output to (as Avro MLWeightedCenters records)")
   private String outputFile;
@@ -70,6 +98,9 @@ public class KMeansSketchCommand implements Command {
   
   @Override
   public int execute(Configuration conf) throws Exception {
+    if (samplesPerIteration <= 0 && targetSketchSize <= 0) {
+      throw new CommandException("Either --points-per-iteration or --target-sketch-size must be specified");
+    }
     Pipeline p = pipelineParams.create(KMeansSketchCommand.class, conf);
     List<Vector> initial = null;
     if (initVectorsPath != null) {
@@ -81,14 +112,32 @@ public class KMeansSketchCommand implements Command {
       initial = Lists.newArrayList();
       initial.add(input.materialize().iterator().next());
     }
-    KMeansParallel kmp = new KMeansParallel(randomParams.getRandom());
+    KMeansParallel kmp = KMeansParallel.builder()
+        .random(randomParams.getRandom())
+        .incremental(incremental)
+        .minRelativeCostDrop(minCostDrop)
+        .minCostPerSample(minCostPerPoint)
+        .targetSketchSize(targetSketchSize)
+        .maxSketchSize(maxSketchSize)
+        .cacheInput(cacheInput)
+        .checkpointFile(checkpointFile == null ? null : new File(checkpointFile),
+            inputParams.getInputPaths().toString())
+        .build();
     Crossfold cf = new Crossfold(crossFolds);
     
+    List<List<Double>> costs = Lists.newArrayList();
     List<List<Weighted<Vector>>> wv = kmp.initialization(input,
-        numIterations, samplesPerIteration, initial, cf);
+        numIterations, samplesPerIteration, initial, cf, costs);
     AvroIO.write(toWeightedCenters(wv), new File(outputFile));
     p.done();
     
+    System.out.println("Iteration,Fold,Cost");
+    for (int i = 0; i < costs.size(); i++) {
+      for (int j = 0; j < costs.get(i).size(); j++) {
+        System.out.println(String.format("%d,%d,%.2f", i, j, costs.get(i).get(j)));
+      }
+    }
+    
     return 0;
   }
 
@@ -61,6 +61,10 @@ public class InputParameters {
     return delim;
   }
   
+  public List<String> getInputPaths() {
+    return inputPaths;
+  }
+  
   public PCollection<Vector> getVectorsFromPath(final Pipeline pipeline, String path) {
     return getVectors(pipeline, Arrays.asList(path));
   }
@@ -16,6 +16,7 @@ package com.cloudera.science.ml.core.vectors;
 
 import java.util.AbstractList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.mahout.math.Vector;
@@ -30,9 +31,37 @@ import com.google.common.collect.Sets;
  * a set of clusters, as in k-means models.
  */
 public class Centers extends AbstractList<Vector> {
+  
+  /**
+   * The number of points (and of centers) that {@link #assign} works on at a time, which
+   * keeps a block of the points and a block of the centers in the cache together.
+   */
+  static final int BLOCK_SIZE = 64;
+  
+  private static final DenseKernel KERNEL = DenseKernel.get();
+  
+  // Per-thread buffers for the single-point lookups, which most callers make once per
+  // point and which would otherwise allocate a copy of every point they are given
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+  
   // The vectors, where each vector is the center of a particular cluster
   private final List<Vector> centers;
   
+  // The dimension of the centers, or -1 if they are not all dense vectors of the same size
+  private final int dimension;
+  
+  // The values of the centers as a row-major matrix, along with their squared lengths
+  private final double[] matrix;
+  private final double[] norms;
+  
+  // A tree over the rows of the matrix, if it is expected to be faster than scanning them
+  private final KDTree tree;
+  
   /**
    * Create a new instance from the given points. Any duplicate
    * points in the arg list will be removed.
@@ -54,6 +83,43 @@ public class Centers extends AbstractList<Vector> {
   public Centers(Iterable<Vector> points) {
     this.centers = ImmutableList.copyOf(Sets.newLinkedHashSet(points));
     Preconditions.checkArgument(this.centers.size() > 0);
+    this.dimension = packedDimension(centers);
+    if (dimension >= 0) {
+      this.matrix = new double[centers.size() * dimension];
+      this.norms = new double[centers.size()];
+      for (int i = 0; i < centers.size(); i++) {
+        Vector c = centers.get(i);
+        int offset = i * dimension;
+        for (int d = 0; d < dimension; d++) {
+          matrix[offset + d] = c.getQuick(d);
+        }
+        norms[i] = dot(matrix, offset, matrix, offset, dimension);
+      }
+      this.tree = KDTree.isWorthwhile(centers.size(), dimension) ?
+          new KDTree(matrix, norms, dimension, identity(centers.size())) : null;
+    } else {
+      this.matrix = null;
+      this.norms = null;
+      this.tree = null;
+    }
+  }
+  
+  private static int[] identity(int size) {
+    int[] rows = new int[size];
+    for (int i = 0; i < size; i++) {
+      rows[i] = i;
+    }
+    return rows;
+  }
+  
+  private static int packedDimension(List<Vector> centers) {
+    int dimension = centers.get(0).size();
+    for (Vector c : centers) {
+      if (!c.isDense() || c.size() != dimension) {
+        return -1;
+      }
+    }
+    return dimension;
   }
   
   /**
@@ -100,11 +166,16 @@ public class Centers extends AbstractList<Vector> {
    * @return The minimum squared Euclidean distance from the point 
    */
   public double getDistanceSquared(Vector point) {
-    double min = Double.POSITIVE_INFINITY;
-    for (Vector c : centers) {
-      min = Math.min(min, c.getDistanceSquared(point));
+    if (matrix == null) {
+      double min = Double.POSITIVE_INFINITY;
+      for (Vector c : centers) {
+        min = Math.min(min, c.getDistanceSquared(point));
+      }
+      return min;
     }
-    return min;
+    Scratch scratch = SCRATCH.get();
+    closest(pack(point, scratch.values(dimension), 0), 0, scratch.distance);
+    return scratch.distance[0];
   }
   
   /**
@@ -115,18 +186,182 @@ public class Centers extends AbstractList<Vector> {
    * @return The index of the closest {@code Vec} to the given point
    */
   public int indexOfClosest(Vector point) {
+    if (matrix == null) {
+      int index = -1;
+      double min = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < centers.size(); i++) {
+        double d = centers.get(i).getDistanceSquared(point); 
+        if (d < min) {
+          min = d;
+          index = i;
+        }
+      }
+      return index;
+    }
+    Scratch scratch = SCRATCH.get();
+    return closest(pack(point, scratch.values(dimension), 0), 0, scratch.distance);
+  }
+  
+  /**
+   * Finds the closest center to each of a block of points at once, which is much faster than
+   * calling {@link #indexOfClosest} on each of them. The points are copied into a dense matrix
+   * {@link #BLOCK_SIZE} points at a time, and the squared distance from each of them to each
+   * block of centers is computed as the squared length of the point plus the squared length of
+   * the center minus twice their dot product, so that the inner loop is a dot product over two
+   * arrays that are both in the cache. When the dimension is low and there are many centers,
+   * each point is looked up in a {@link KDTree} over the centers instead, which finds the same
+   * center. Ties go to the center with the lowest index. The distance to the closest center
+   * that is returned is computed from the differences of the values, so it is exact even when
+   * the expanded form is not.
+   * 
+   * @param points The points to assign
+   * @param closest The array to store the index of the closest center to each point in
+   * @param distances The array to store the squared distance from each point to its closest
+   * center in, or null if the distances are not needed
+   */
+  public void assign(List<? extends Vector> points, int[] closest, double[] distances) {
+    Preconditions.checkArgument(closest.length >= points.size(), "closest is too small");
+    Preconditions.checkArgument(distances == null || distances.length >= points.size(),
+        "distances is too small");
+    if (matrix == null) {
+      for (int i = 0; i < points.size(); i++) {
+        closest[i] = indexOfClosest(points.get(i));
+        if (distances != null) {
+          distances[i] = centers.get(closest[i]).getDistanceSquared(points.get(i));
+        }
+      }
+      return;
+    }
+    // Allocated once per call, not once per block or per point
+    double[] block = new double[BLOCK_SIZE * dimension];
+    double[] blockNorms = new double[BLOCK_SIZE];
+    double[] min = new double[BLOCK_SIZE];
+    double[] distance = new double[1];
+    for (int start = 0; start < points.size(); start += BLOCK_SIZE) {
+      int size = Math.min(BLOCK_SIZE, points.size() - start);
+      for (int p = 0; p < size; p++) {
+        pack(points.get(start + p), block, p * dimension);
+      }
+      if (tree != null) {
+        for (int p = 0; p < size; p++) {
+          closest[start + p] = closest(block, p * dimension, distance);
+          min[p] = distance[0];
+        }
+      } else {
+        closestInBlock(block, blockNorms, size, closest, start, min);
+      }
+      if (distances != null) {
+        System.arraycopy(min, 0, distances, start, size);
+      }
+    }
+  }
+  
+  private void closestInBlock(double[] block, double[] blockNorms, int size, int[] closest,
+      int start, double[] min) {
+    for (int p = 0; p < size; p++) {
+      int offset = p * dimension;
+      blockNorms[p] = dot(block, offset, block, offset, dimension);
+      min[p] = Double.POSITIVE_INFINITY;
+      closest[start + p] = -1;
+    }
+    for (int c0 = 0; c0 < norms.length; c0 += BLOCK_SIZE) {
+      int c1 = Math.min(norms.length, c0 + BLOCK_SIZE);
+      for (int p = 0; p < size; p++) {
+        int offset = p * dimension;
+        for (int c = c0; c < c1; c++) {
+          double d = blockNorms[p] + norms[c] - 2.0 * dot(block, offset, matrix, c * dimension,
+              dimension);
+          if (d < min[p]) {
+            min[p] = d;
+            closest[start + p] = c;
+          }
+        }
+      }
+    }
+    for (int p = 0; p < size; p++) {
+      if (closest[start + p] >= 0) {
+        min[p] = distanceTo(block, p * dimension, closest[start + p]);
+      }
+    }
+  }
+  
+  /**
+   * Finds the closest center to the point at the given offset of the given array, and
+   * stores the squared distance to it in the given array.
+   */
+  private int closest(double[] values, int offset, double[] distance) {
+    double pointNorm = dot(values, offset, values, offset, dimension);
     int index = -1;
     double min = Double.POSITIVE_INFINITY;
-    for (int i = 0; i < centers.size(); i++) {
-      double d = centers.get(i).getDistanceSquared(point); 
-      if (d < min) {
-        min = d;
-        index = i;
+    if (tree != null) {
+      index = tree.nearest(values, offset, pointNorm, distance);
+      min = distance[0];
+    } else {
+      for (int c = 0; c < norms.length; c++) {
+        double d = pointNorm + norms[c] - 2.0 * dot(values, offset, matrix, c * dimension,
+            dimension);
+        if (d < min) {
+          min = d;
+          index = c;
+        }
       }
     }
+    distance[0] = index < 0 ? min : distanceTo(values, offset, index);
     return index;
   }
   
+  /**
+   * Computes the squared distance from the point at the given offset of the given array to
+   * the given center from the differences of their values. The expanded form that is used to
+   * find the closest center loses precision when the point and the center are far from the
+   * origin, so the distances that are returned are always computed this way.
+   */
+  private double distanceTo(double[] values, int offset, int center) {
+    int base = center * dimension;
+    double sum = 0.0;
+    for (int d = 0; d < dimension; d++) {
+      double diff = values[offset + d] - matrix[base + d];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+  
+  /**
+   * Copies the values of the given point into the given array at the given offset.
+   */
+  private double[] pack(Vector v, double[] values, int offset) {
+    Preconditions.checkArgument(v.size() == dimension, "Point has the wrong dimension");
+    if (v.isDense()) {
+      for (int d = 0; d < dimension; d++) {
+        values[offset + d] = v.getQuick(d);
+      }
+    } else {
+      Arrays.fill(values, offset, offset + dimension, 0.0);
+      Iterator<Vector.Element> iter = v.iterateNonZero();
+      while (iter.hasNext()) {
+        Vector.Element e = iter.next();
+        values[offset + e.index()] = e.get();
+      }
+    }
+    return values;
+  }
+  
+  private static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+    return KERNEL.dot(a, aOffset, b, bOffset, length);
+  }
+  
+  private static final class Scratch {
+    private double[] values = new double[0];
+    private final double[] distance = new double[1];
+    
+    double[] values(int dimension) {
+      if (values.length < dimension) {
+        values = new double[dimension];
+      }
+      return values;
+    }
+  }
+  
   /**
    * Calculate the sum of the element-wise squared distances between this
    * instance and the given {@code Centers}.
@@ -137,6 +372,13 @@ public class Centers extends AbstractList<Vector> {
   public double getSumOfSquaredDistances(Centers other) {
     Preconditions.checkArgument(size() == other.size());
     double sum = 0.0;
+    if (matrix != null && other.matrix != null && dimension == other.dimension) {
+      for (int i = 0; i < matrix.length; i++) {
+        double diff = matrix[i] - other.matrix[i];
+        sum += diff * diff;
+      }
+      return sum;
+    }
     for (int i = 0; i < centers.size(); i++) {
       sum += centers.get(i).getDistanceSquared(other.centers.get(i));
     }
@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.core.vectors;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An approximate nearest-neighbor index over some of the rows of a packed, row-major matrix
+ * of points, for finding a close center to a point without scanning all of the centers when
+ * there are too many of them and their dimension is too high for a {@link KDTree} to help.
+ * 
+ * <p>The points are clustered into about the square root of their number of cells with a few
+ * iterations of Lloyd's algorithm, so that the index is a set of centers of the centers. A
+ * search computes the distance to each of the cell centers and then only scans the points in
+ * the given number of closest cells, so the number of cells that are probed trades the
+ * recall of the index (the fraction of the points whose closest point it finds) against its
+ * speed. Probing all of the cells is equivalent to a linear scan, and the distances to the
+ * points are computed in exactly the same way as the linear scans in {@link Centers}, with
+ * ties going to the point that comes first.
+ * 
+ * <p>The cells are seeded deterministically, so every index that is built over the same
+ * points returns the same results, and an index can be recreated from its cells without
+ * clustering its points again.
+ */
+public final class CoarseIndex implements NearestIndex {
+
+  /**
+   * The smallest number of points that it is worth building an index over.
+   */
+  public static final int MIN_POINTS = 256;
+  
+  private static final int ITERATIONS = 5;
+  
+  private static final DenseKernel KERNEL = DenseKernel.get();
+  
+  // Per-thread buffers for the closest cells to the point of a search
+  private static final ThreadLocal<Probes> SCRATCH = new ThreadLocal<Probes>() {
+    @Override
+    protected Probes initialValue() {
+      return new Probes();
+    }
+  };
+  
+  private final int dimension;
+  private final int probes;
+  private final int numCells;
+  
+  // The centers of the cells and their squared lengths
+  private final double[] cellCenters;
+  private final double[] cellNorms;
+  
+  // The points, copied in the order of their cells so that each cell is a contiguous range
+  private final int[] cellStart;
+  private final int[] positions;
+  private final double[] values;
+  private final double[] norms;
+  
+  /**
+   * Returns the number of cells that an index over the given number of points uses.
+   */
+  public static int getNumCells(int numPoints) {
+    return Math.max(1, (int) Math.round(Math.sqrt(numPoints)));
+  }
+  
+  /**
+   * Returns true if probing the given number of cells of an index over the given number
+   * of points is expected to be faster than a linear scan over them.
+   * 
+   * @param numPoints The number of points to index
+   * @param probes The number of cells that each search scans
+   */
+  public static boolean isWorthwhile(int numPoints, int probes) {
+    return numPoints >= MIN_POINTS && probes > 0 && 2 * probes < getNumCells(numPoints);
+  }
+  
+  /**
+   * Creates an index over some of the rows of the given matrix.
+   * 
+   * @param matrix The values of the points, in row-major order
+   * @param norms The squared length of each row of the matrix
+   * @param dimension The number of values in each row
+   * @param rows The rows to index, where the position of each row in this array is the
+   * value that {@link #nearest} returns for it
+   * @param probes The number of the closest cells to scan for each search
+   */
+  public CoarseIndex(double[] matrix, double[] norms, int dimension, int[] rows, int probes) {
+    this(matrix, norms, dimension, rows, probes, cluster(matrix, norms, dimension, rows));
+  }
+  
+  private CoarseIndex(double[] matrix, double[] norms, int dimension, int[] rows, int probes,
+      double[] cellCenters) {
+    this(matrix, norms, dimension, rows, probes, cellCenters,
+        assign(matrix, norms, dimension, rows, cellCenters, new int[rows.length]));
+  }
+  
+  /**
+   * Recreates an index over some of the rows of the given matrix from the cells of an
+   * index that was built over the same rows, as returned by its {@link #getCellCenters()}
+   * and {@link #getCells()} methods, without clustering the points again.
+   * 
+   * @param matrix The values of the points, in row-major order
+   * @param norms The squared length of each row of the matrix
+   * @param dimension The number of values in each row
+   * @param rows The rows to index, where the position of each row in this array is the
+   * value that {@link #nearest} returns for it
+   * @param probes The number of the closest cells to scan for each search
+   * @param cellCenters The centers of the cells, in row-major order
+   * @param cells The cell of each of the rows
+   */
+  public CoarseIndex(double[] matrix, double[] norms, int dimension, int[] rows, int probes,
+      double[] cellCenters, int[] cells) {
+    Preconditions.checkArgument(dimension > 0, "dimension must be positive");
+    Preconditions.checkArgument(rows.length > 0, "No rows to index");
+    Preconditions.checkArgument(probes > 0, "probes must be positive");
+    this.dimension = dimension;
+    this.numCells = getNumCells(rows.length);
+    Preconditions.checkArgument(cellCenters.length == numCells * dimension,
+        "Expected %s cell centers of dimension %s", numCells, dimension);
+    Preconditions.checkArgument(cells.length == rows.length,
+        "Expected %s cells, got %s", rows.length, cells.length);
+    this.probes = Math.min(probes, numCells);
+    this.cellCenters = cellCenters;
+    this.cellNorms = lengths(cellCenters, numCells, dimension);
+    
+    this.cellStart = new int[numCells + 1];
+    for (int cell : cells) {
+      Preconditions.checkArgument(cell >= 0 && cell < numCells, "Invalid cell: %s", cell);
+      cellStart[cell + 1]++;
+    }
+    for (int cell = 0; cell < numCells; cell++) {
+      cellStart[cell + 1] += cellStart[cell];
+    }
+    int[] next = Arrays.copyOf(cellStart, numCells);
+    this.positions = new int[rows.length];
+    this.values = new double[rows.length * dimension];
+    this.norms = new double[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      int j = next[cells[i]]++;
+      positions[j] = i;
+      System.arraycopy(matrix, rows[i] * dimension, values, j * dimension, dimension);
+      this.norms[j] = norms[rows[i]];
+    }
+  }
+  
+  /**
+   * Seeds the cells with points that are spread evenly through the rows and refines them
+   * with a few iterations of Lloyd's algorithm, returning the centers of the cells.
+   */
+  private static double[] cluster(double[] matrix, double[] norms, int dimension, int[] rows) {
+    Preconditions.checkArgument(dimension > 0, "dimension must be positive");
+    Preconditions.checkArgument(rows.length > 0, "No rows to index");
+    int numCells = getNumCells(rows.length);
+    double[] cellCenters = new double[numCells * dimension];
+    for (int cell = 0; cell < numCells; cell++) {
+      int row = rows[(int) ((long) cell * rows.length / numCells)];
+      System.arraycopy(matrix, row * dimension, cellCenters, cell * dimension, dimension);
+    }
+    int[] cells = new int[rows.length];
+    for (int iter = 0; iter < ITERATIONS; iter++) {
+      assign(matrix, norms, dimension, rows, cellCenters, cells);
+      update(matrix, dimension, rows, cells, cellCenters);
+    }
+    return cellCenters;
+  }
+  
+  /**
+   * Writes the closest cell to each of the rows into the given array and returns it.
+   */
+  private static int[] assign(double[] matrix, double[] norms, int dimension, int[] rows,
+      double[] cellCenters, int[] cells) {
+    int numCells = cellCenters.length / dimension;
+    double[] cellNorms = lengths(cellCenters, numCells, dimension);
+    for (int i = 0; i < rows.length; i++) {
+      int offset = rows[i] * dimension;
+      double min = Double.POSITIVE_INFINITY;
+      for (int cell = 0; cell < numCells; cell++) {
+        double d = cellNorms[cell] + norms[rows[i]] -
+            2.0 * KERNEL.dot(cellCenters, cell * dimension, matrix, offset, dimension);
+        if (d < min) {
+          min = d;
+          cells[i] = cell;
+        }
+      }
+    }
+    return cells;
+  }
+  
+  private static void update(double[] matrix, int dimension, int[] rows, int[] cells,
+      double[] cellCenters) {
+    int numCells = cellCenters.length / dimension;
+    double[] sums = new double[numCells * dimension];
+    int[] counts = new int[numCells];
+    for (int i = 0; i < rows.length; i++) {
+      int offset = rows[i] * dimension;
+      int base = cells[i] * dimension;
+      for (int d = 0; d < dimension; d++) {
+        sums[base + d] += matrix[offset + d];
+      }
+      counts[cells[i]]++;
+    }
+    for (int cell = 0; cell < numCells; cell++) {
+      // An empty cell keeps its old center
+      if (counts[cell] > 0) {
+        int base = cell * dimension;
+        for (int d = 0; d < dimension; d++) {
+          cellCenters[base + d] = sums[base + d] / counts[cell];
+        }
+      }
+    }
+  }
+  
+  private static double[] lengths(double[] cellCenters, int numCells, int dimension) {
+    double[] lengths = new double[numCells];
+    for (int cell = 0; cell < numCells; cell++) {
+      double norm = 0.0;
+      for (int d = cell * dimension; d < (cell + 1) * dimension; d++) {
+        norm += cellCenters[d] * cellCenters[d];
+      }
+      lengths[cell] = norm;
+    }
+    return lengths;
+  }
+  
+  /**
+   * Returns the number of cells that the points of this index are clustered into.
+   */
+  public int getNumCells() {
+    return numCells;
+  }
+  
+  /**
+   * Returns the number of cells that each search scans.
+   */
+  public int getProbes() {
+    return probes;
+  }
+  
+  /**
+   * Returns the centers of the cells of this index, in row-major order.
+   */
+  public double[] getCellCenters() {
+    return cellCenters.clone();
+  }
+  
+  /**
+   * Returns the cell of each of the rows that this index was built over, in the order
+   * that the rows were given in.
+   */
+  public int[] getCells() {
+    int[] cells = new int[positions.length];
+    for (int cell = 0; cell < numCells; cell++) {
+      for (int j = cellStart[cell]; j < cellStart[cell + 1]; j++) {
+        cells[positions[j]] = cell;
+      }
+    }
+    return cells;
+  }
+  
+  @Override
+  public int size() {
+    return positions.length;
+  }
+  
+  /**
+   * {@inheritDoc}
+   * 
+   * <p>The point that is returned is the closest one in the cells that were scanned,
+   * which is not necessarily the closest point in the index.
+   */
+  @Override
+  public int nearest(double[] point, int offset, double pointNorm, double[] distance) {
+    // The closest cells so far, in order of increasing distance
+    Probes scratch = SCRATCH.get().ensure(probes);
+    int[] probed = scratch.cells;
+    double[] probedDistances = scratch.distances;
+    Arrays.fill(probedDistances, 0, probes, Double.POSITIVE_INFINITY);
+    for (int cell = 0; cell < numCells; cell++) {
+      double d = cellNorms[cell] + pointNorm -
+          2.0 * KERNEL.dot(cellCenters, cell * dimension, point, offset, dimension);
+      if (d < probedDistances[probes - 1]) {
+        int i = probes - 1;
+        while (i > 0 && probedDistances[i - 1] > d) {
+          probed[i] = probed[i - 1];
+          probedDistances[i] = probedDistances[i - 1];
+          i--;
+        }
+        probed[i] = cell;
+        probedDistances[i] = d;
+      }
+    }
+    
+    double best = Double.POSITIVE_INFINITY;
+    int position = -1;
+    for (int p = 0; p < probes && probedDistances[p] < Double.POSITIVE_INFINITY; p++) {
+      int cell = probed[p];
+      for (int j = cellStart[cell]; j < cellStart[cell + 1]; j++) {
+        double d = norms[j] + pointNorm -
+            2.0 * KERNEL.dot(values, j * dimension, point, offset, dimension);
+        if (d < best || (d == best && positions[j] < position)) {
+          best = d;
+          position = positions[j];
+        }
+      }
+    }
+    distance[0] = best;
+    return position;
+  }
+  
+  private static final class Probes {
+    private int[] cells = new int[0];
+    private double[] distances = new double[0];
+    
+    Probes ensure(int probes) {
+      if (cells.length < probes) {
+        cells = new int[probes];
+        distances = new double[probes];
+      }
+      return this;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.core.vectors;
+
+/**
+ * The loop over dense arrays of doubles that the distance computations in {@link Centers}
+ * and in the k-means code are built on. The instance returned by {@link #get()} is the
+ * fastest one that the running JVM supports: if the optional {@code ml-simd} module is on
+ * the classpath and the JVM was started with {@code --add-modules jdk.incubator.vector},
+ * it uses the SIMD instructions of the CPU through the JDK's Vector API, and otherwise it
+ * is the plain {@link #SCALAR} loop. The {@value #KERNEL_PROPERTY} system property may be
+ * set to the name of a different subclass to use, or to {@code scalar} to turn the SIMD
+ * kernel off.
+ */
+public abstract class DenseKernel {
+
+  /**
+   * The system property that names the {@code DenseKernel} subclass to use.
+   */
+  public static final String KERNEL_PROPERTY = "ml.dense.kernel";
+  
+  /**
+   * The name of the kernel in the {@code ml-simd} module.
+   */
+  static final String SIMD_KERNEL = "com.cloudera.science.ml.simd.VectorApiKernel";
+  
+  /**
+   * A kernel that works on any JVM.
+   */
+  public static final DenseKernel SCALAR = new DenseKernel() {
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+      double sum = 0.0;
+      for (int i = 0; i < length; i++) {
+        sum += a[aOffset + i] * b[bOffset + i];
+      }
+      return sum;
+    }
+  };
+  
+  /**
+   * Returns the kernel to use for the distance computations in this JVM.
+   */
+  public static DenseKernel get() {
+    return Holder.INSTANCE;
+  }
+  
+  // Loads the kernel on first use, rather than while this class is being initialized,
+  // which may happen in the middle of initializing the subclass that is to be loaded
+  private static class Holder {
+    static final DenseKernel INSTANCE = load(System.getProperty(KERNEL_PROPERTY, SIMD_KERNEL));
+  }
+  
+  static DenseKernel load(String className) {
+    if ("scalar".equalsIgnoreCase(className)) {
+      return SCALAR;
+    }
+    try {
+      DenseKernel kernel = (DenseKernel) Class.forName(className).newInstance();
+      // Make sure that the kernel can actually run here before we commit to it
+      double[] check = { 1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 8.0, 9.0 };
+      double expected = SCALAR.dot(check, 0, check, 0, check.length);
+      if (kernel.dot(check, 0, check, 0, check.length) != expected) {
+        return SCALAR;
+      }
+      return kernel;
+    } catch (Exception e) {
+      // Not on the classpath, or not a kernel
+      return SCALAR;
+    } catch (LinkageError e) {
+      // Compiled for a newer JVM, or the jdk.incubator.vector module is not available
+      return SCALAR;
+    }
+  }
+  
+  /**
+   * Returns the dot product of the given ranges of the two arrays.
+   * 
+   * @param a The first array
+   * @param aOffset The index of the first value to use in the first array
+   * @param b The second array
+   * @param bOffset The index of the first value to use in the second array
+   * @param length The number of values to use from each array
+   * @return The dot product
+   */
+  public abstract double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+}
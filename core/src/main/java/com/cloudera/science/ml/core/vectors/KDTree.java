@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.core.vectors;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An exact nearest-neighbor index over some of the rows of a packed, row-major matrix of
+ * points, for finding the closest center to a point without scanning all of the centers
+ * when the dimension of the data is low.
+ * 
+ * <p>The tree splits the points at the median of the dimension with the widest spread
+ * until each leaf has at most {@value #LEAF_SIZE} points, and keeps the bounding box of
+ * each node. A search visits the nearer child of each node first and skips any node whose
+ * bounding box is farther from the point than the closest point found so far. The
+ * distances to the points in the leaves are computed in exactly the same way as the linear
+ * scans in {@link Centers} do it (as the squared lengths minus twice the dot product), and
+ * a node is only skipped when it is farther away by more than the rounding error of that
+ * computation, so the search returns the same point as a linear scan would, with ties
+ * going to the point that comes first.
+ */
+public final class KDTree implements NearestIndex {
+
+  /**
+   * The largest number of points in a leaf of the tree.
+   */
+  public static final int LEAF_SIZE = 8;
+  
+  // The relative rounding error allowed for when pruning nodes
+  private static final double SLACK = 1e-9;
+  
+  private static final DenseKernel KERNEL = DenseKernel.get();
+  
+  private final double[] matrix;
+  private final double[] norms;
+  private final int dimension;
+  private final int[] rows;
+  private final double maxNorm;
+  
+  // The positions (indices into rows) of the points, ordered so that each node covers a range
+  private final int[] order;
+  
+  // The nodes of the tree, where a node with no children is a leaf
+  private final int[] start;
+  private final int[] end;
+  private final int[] left;
+  private final int[] right;
+  private final double[] lower;
+  private final double[] upper;
+  private int numNodes;
+  
+  /**
+   * Returns true if a tree is expected to find the closest of the given number of points
+   * faster than a linear scan over them does, which is only the case when there are many
+   * more points than there are corners of a box in the given dimension.
+   * 
+   * @param numPoints The number of points to index
+   * @param dimension The dimension of the points
+   */
+  public static boolean isWorthwhile(int numPoints, int dimension) {
+    return dimension > 0 && dimension < 20 && numPoints >= 64 &&
+        numPoints >= 8 * (1 << (dimension / 2));
+  }
+  
+  /**
+   * Creates a tree over some of the rows of the given matrix.
+   * 
+   * @param matrix The values of the points, in row-major order
+   * @param norms The squared length of each row of the matrix
+   * @param dimension The number of values in each row
+   * @param rows The rows to index, where the position of each row in this array is the
+   * value that {@link #nearest} returns for it
+   */
+  public KDTree(double[] matrix, double[] norms, int dimension, int[] rows) {
+    Preconditions.checkArgument(dimension > 0, "dimension must be positive");
+    Preconditions.checkArgument(rows.length > 0, "No rows to index");
+    this.matrix = matrix;
+    this.norms = norms;
+    this.dimension = dimension;
+    this.rows = rows;
+    double max = 0.0;
+    this.order = new int[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      order[i] = i;
+      max = Math.max(max, norms[rows[i]]);
+    }
+    this.maxNorm = max;
+    int maxNodes = 2 * rows.length;
+    this.start = new int[maxNodes];
+    this.end = new int[maxNodes];
+    this.left = new int[maxNodes];
+    this.right = new int[maxNodes];
+    this.lower = new double[maxNodes * dimension];
+    this.upper = new double[maxNodes * dimension];
+    build(0, rows.length);
+  }
+  
+  private int build(int from, int to) {
+    int node = numNodes++;
+    start[node] = from;
+    end[node] = to;
+    left[node] = -1;
+    right[node] = -1;
+    int box = node * dimension;
+    for (int d = 0; d < dimension; d++) {
+      double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+        double v = coordinate(order[i], d);
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+      }
+      lower[box + d] = min;
+      upper[box + d] = max;
+    }
+    if (to - from > LEAF_SIZE) {
+      int split = 0;
+      double spread = -1.0;
+      for (int d = 0; d < dimension; d++) {
+        if (upper[box + d] - lower[box + d] > spread) {
+          spread = upper[box + d] - lower[box + d];
+          split = d;
+        }
+      }
+      if (spread > 0.0) {
+        int mid = (from + to) >>> 1;
+        select(from, to, mid, split);
+        left[node] = build(from, mid);
+        right[node] = build(mid, to);
+      }
+    }
+    return node;
+  }
+  
+  private double coordinate(int position, int d) {
+    return matrix[rows[position] * dimension + d];
+  }
+  
+  /**
+   * Reorders the positions in the given range so that the one at index k is the one that
+   * would be there if the range was sorted by the given coordinate, with the ones before it
+   * no larger and the ones after it no smaller.
+   */
+  private void select(int from, int to, int k, int d) {
+    int lo = from, hi = to - 1;
+    while (lo < hi) {
+      double pivot = coordinate(order[(lo + hi) >>> 1], d);
+      int i = lo, j = hi;
+      while (i <= j) {
+        while (coordinate(order[i], d) < pivot) {
+          i++;
+        }
+        while (coordinate(order[j], d) > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int tmp = order[i];
+          order[i] = order[j];
+          order[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        hi = j;
+      } else if (k >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+  
+  @Override
+  public int size() {
+    return rows.length;
+  }
+  
+  @Override
+  public int nearest(double[] point, int offset, double pointNorm, double[] distance) {
+    // The distance to the closest point so far is kept in the caller's array, so that a
+    // search does not allocate anything
+    distance[0] = Double.POSITIVE_INFINITY;
+    return search(0, point, offset, pointNorm, SLACK * (pointNorm + maxNorm), distance, -1);
+  }
+  
+  /**
+   * Searches the subtree under the given node for a point that is closer than the best one
+   * so far, whose distance is in {@code best[0]} and whose position is given, and returns
+   * the position of the closest point after the search.
+   */
+  private int search(int node, double[] point, int offset, double pointNorm, double slack,
+      double[] best, int position) {
+    if (left[node] < 0) {
+      for (int i = start[node]; i < end[node]; i++) {
+        int p = order[i];
+        int row = rows[p];
+        double d = norms[row] + pointNorm -
+            2.0 * KERNEL.dot(matrix, row * dimension, point, offset, dimension);
+        if (d < best[0] || (d == best[0] && p < position)) {
+          best[0] = d;
+          position = p;
+        }
+      }
+      return position;
+    }
+    double leftBound = boxDistance(left[node], point, offset);
+    double rightBound = boxDistance(right[node], point, offset);
+    int first = left[node], second = right[node];
+    double secondBound = rightBound;
+    if (rightBound < leftBound) {
+      first = right[node];
+      second = left[node];
+      secondBound = leftBound;
+    }
+    if (Math.min(leftBound, rightBound) <= best[0] + slack) {
+      position = search(first, point, offset, pointNorm, slack, best, position);
+    }
+    if (secondBound <= best[0] + slack) {
+      position = search(second, point, offset, pointNorm, slack, best, position);
+    }
+    return position;
+  }
+  
+  private double boxDistance(int node, double[] point, int offset) {
+    int box = node * dimension;
+    double sum = 0.0;
+    for (int d = 0; d < dimension; d++) {
+      double v = point[offset + d];
+      double diff = 0.0;
+      if (v < lower[box + d]) {
+        diff = lower[box + d] - v;
+      } else if (v > upper[box + d]) {
+        diff = v - upper[box + d];
+      }
+      sum += diff * diff;
+    }
+    return sum;
+  }
+}
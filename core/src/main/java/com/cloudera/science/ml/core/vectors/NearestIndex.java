@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.core.vectors;
+
+/**
+ * An index over some of the rows of a packed, row-major matrix of points that finds the
+ * closest of them to a query point, such as a {@link KDTree} or a {@link CoarseIndex}.
+ */
+public interface NearestIndex {
+
+  /**
+   * Returns the number of points in the index.
+   */
+  int size();
+  
+  /**
+   * Finds the closest point in the index to the given point.
+   * 
+   * @param point An array that contains the values of the point
+   * @param offset The index of the first value of the point in the array
+   * @param pointNorm The squared length of the point
+   * @param distance An array to store the squared distance to the closest point in
+   * @return The position of the row of the closest point in the array of rows that the
+   * index was created with
+   */
+  int nearest(double[] point, int offset, double pointNorm, double[] distance);
+}
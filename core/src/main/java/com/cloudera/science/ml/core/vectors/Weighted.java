@@ -60,6 +60,21 @@ public class Weighted<T> {
     return Lists.transform(things, new WeightFunction<T>());
   }
   
+  /**
+   * Returns a view of the things referenced by the given {@code List} of weighted things.
+   * 
+   * @param weighted The weighted things
+   * @return The things, in the same order
+   */
+  public static <T> List<T> things(List<Weighted<T>> weighted) {
+    return Lists.transform(weighted, new Function<Weighted<T>, T>() {
+      @Override
+      public T apply(Weighted<T> input) {
+        return input.thing();
+      }
+    });
+  }
+  
   /**
    * Create a new instance with weight 1.0.
    * 
@@ -16,11 +16,16 @@ package com.cloudera.science.ml.core.vectors;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.Vector;
 import org.junit.Test;
 
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Vectors;
+import com.google.common.collect.Lists;
 
 public class CentersTest {
   private static double THRESH = 0.001;
@@ -47,4 +52,54 @@ public class CentersTest {
     assertEquals(1, centers.indexOfClosest(c));
     assertEquals(0, centers.indexOfClosest(a));
   }
+  
+  @Test
+  public void testAssign() throws Exception {
+    Random rand = new Random(1729L);
+    List<Vector> points = Lists.newArrayList();
+    for (int i = 0; i < 3 * Centers.BLOCK_SIZE + 7; i++) {
+      Vector v = Vectors.of(rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian());
+      points.add(i % 2 == 0 ? v : new RandomAccessSparseVector(v));
+    }
+    List<Vector> vecs = Lists.newArrayList();
+    for (int i = 0; i < Centers.BLOCK_SIZE + 3; i++) {
+      vecs.add(Vectors.of(rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian()));
+    }
+    Centers centers = new Centers(vecs);
+    int[] closest = new int[points.size()];
+    double[] distances = new double[points.size()];
+    centers.assign(points, closest, distances);
+    for (int i = 0; i < points.size(); i++) {
+      Vector p = points.get(i);
+      int expected = -1;
+      double min = Double.POSITIVE_INFINITY;
+      for (int j = 0; j < vecs.size(); j++) {
+        double d = vecs.get(j).minus(p).getLengthSquared();
+        if (d < min) {
+          min = d;
+          expected = j;
+        }
+      }
+      assertEquals(expected, closest[i]);
+      assertEquals(expected, centers.indexOfClosest(p));
+      assertEquals(min, distances[i], 1e-9);
+      assertEquals(min, centers.getDistanceSquared(p), 1e-9);
+    }
+  }
+  
+  @Test
+  public void testExactDistancesFarFromOrigin() throws Exception {
+    // Far enough from the origin that the expanded form has no precision left
+    Centers centers = new Centers(Vectors.of(1.0e8, 1.0e8), Vectors.of(1.0e8 + 4.0, 1.0e8));
+    Vector p = Vectors.of(1.0e8 + 0.5, 1.0e8);
+    assertEquals(0.25, centers.getDistanceSquared(p), 0.0);
+    assertEquals(0.0, centers.getDistanceSquared(centers.get(1)), 0.0);
+    List<Vector> points = Lists.newArrayList(p, Vectors.of(1.0e8 + 3.0, 1.0e8 - 1.0));
+    int[] closest = new int[2];
+    double[] distances = new double[2];
+    centers.assign(points, closest, distances);
+    assertEquals(0.25, distances[0], 0.0);
+    assertEquals(1, closest[1]);
+    assertEquals(2.0, distances[1], 0.0);
+  }
 }
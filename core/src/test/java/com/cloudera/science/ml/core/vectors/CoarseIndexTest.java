@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.core.vectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CoarseIndexTest {
+  
+  private static final int DIMENSION = 16;
+  private static final int NUM_CENTERS = 1000;
+  
+  private final double[] matrix = new double[NUM_CENTERS * DIMENSION];
+  private final double[] norms = new double[NUM_CENTERS];
+  private final int[] rows = new int[NUM_CENTERS];
+  
+  public CoarseIndexTest() {
+    // Centers that are scattered around a few well-separated locations
+    Random rand = new Random(1729L);
+    double[][] locations = new double[20][DIMENSION];
+    for (double[] loc : locations) {
+      for (int d = 0; d < DIMENSION; d++) {
+        loc[d] = 10.0 * rand.nextGaussian();
+      }
+    }
+    for (int i = 0; i < NUM_CENTERS; i++) {
+      double[] loc = locations[rand.nextInt(locations.length)];
+      for (int d = 0; d < DIMENSION; d++) {
+        matrix[i * DIMENSION + d] = loc[d] + rand.nextGaussian();
+        norms[i] += matrix[i * DIMENSION + d] * matrix[i * DIMENSION + d];
+      }
+      rows[i] = NUM_CENTERS - 1 - i;
+    }
+  }
+  
+  private double[] randomPoint(Random rand) {
+    double[] point = new double[DIMENSION];
+    int i = rand.nextInt(NUM_CENTERS);
+    for (int d = 0; d < DIMENSION; d++) {
+      point[d] = matrix[i * DIMENSION + d] + 0.5 * rand.nextGaussian();
+    }
+    return point;
+  }
+  
+  private int linearScan(double[] point, double norm, double[] distance) {
+    int closest = -1;
+    double min = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < rows.length; i++) {
+      double dot = DenseKernel.get().dot(matrix, rows[i] * DIMENSION, point, 0, DIMENSION);
+      double d = norms[rows[i]] + norm - 2.0 * dot;
+      if (d < min) {
+        min = d;
+        closest = i;
+      }
+    }
+    distance[0] = min;
+    return closest;
+  }
+  
+  @Test
+  public void testAllProbesMatchLinearScan() throws Exception {
+    int numCells = CoarseIndex.getNumCells(NUM_CENTERS);
+    assertFalse(CoarseIndex.isWorthwhile(NUM_CENTERS, numCells));
+    CoarseIndex index = new CoarseIndex(matrix, norms, DIMENSION, rows, numCells);
+    assertEquals(NUM_CENTERS, index.size());
+    assertEquals(numCells, index.getProbes());
+    Random rand = new Random(17L);
+    double[] expected = new double[1];
+    double[] distance = new double[1];
+    for (int n = 0; n < 200; n++) {
+      double[] point = randomPoint(rand);
+      double norm = DenseKernel.get().dot(point, 0, point, 0, DIMENSION);
+      assertEquals(linearScan(point, norm, expected), index.nearest(point, 0, norm, distance));
+      assertEquals(expected[0], distance[0], 0.0);
+    }
+  }
+  
+  @Test
+  public void testRecallIncreasesWithProbes() throws Exception {
+    assertTrue(CoarseIndex.isWorthwhile(NUM_CENTERS, 3));
+    double lastRecall = 0.0;
+    for (int probes : new int[] { 1, 3, 10 }) {
+      CoarseIndex index = new CoarseIndex(matrix, norms, DIMENSION, rows, probes);
+      Random rand = new Random(17L);
+      double[] expected = new double[1];
+      double[] distance = new double[1];
+      int matched = 0;
+      for (int n = 0; n < 500; n++) {
+        double[] point = randomPoint(rand);
+        double norm = DenseKernel.get().dot(point, 0, point, 0, DIMENSION);
+        int closest = index.nearest(point, 0, norm, distance);
+        assertEquals(distance[0], norms[rows[closest]] + norm -
+            2.0 * DenseKernel.get().dot(matrix, rows[closest] * DIMENSION, point, 0, DIMENSION),
+            0.0);
+        if (closest == linearScan(point, norm, expected)) {
+          matched++;
+        }
+      }
+      double recall = matched / 500.0;
+      assertTrue(recall >= lastRecall);
+      lastRecall = recall;
+    }
+    assertTrue(lastRecall > 0.9);
+  }
+  
+  @Test
+  public void testRecreateFromCells() throws Exception {
+    CoarseIndex index = new CoarseIndex(matrix, norms, DIMENSION, rows, 3);
+    CoarseIndex copy = new CoarseIndex(matrix, norms, DIMENSION, rows, 3,
+        index.getCellCenters(), index.getCells());
+    assertEquals(index.getNumCells(), copy.getNumCells());
+    Random rand = new Random(17L);
+    double[] expected = new double[1];
+    double[] distance = new double[1];
+    for (int n = 0; n < 200; n++) {
+      double[] point = randomPoint(rand);
+      double norm = DenseKernel.get().dot(point, 0, point, 0, DIMENSION);
+      assertEquals(index.nearest(point, 0, norm, expected), copy.nearest(point, 0, norm, distance));
+      assertEquals(expected[0], distance[0], 0.0);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.core.vectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class KDTreeTest {
+  
+  @Test
+  public void testMatchesLinearScan() throws Exception {
+    Random rand = new Random(1729L);
+    int dimension = 4;
+    int numCenters = 500;
+    double[] matrix = new double[numCenters * dimension];
+    double[] norms = new double[numCenters];
+    int[] rows = new int[numCenters];
+    for (int i = 0; i < numCenters; i++) {
+      for (int d = 0; d < dimension; d++) {
+        // Round some of the values so that there are ties along each axis
+        double v = rand.nextGaussian();
+        matrix[i * dimension + d] = (i % 3 == 0) ? Math.rint(v) : v;
+        norms[i] += matrix[i * dimension + d] * matrix[i * dimension + d];
+      }
+      rows[i] = numCenters - 1 - i;
+    }
+    KDTree tree = new KDTree(matrix, norms, dimension, rows);
+    assertEquals(numCenters, tree.size());
+    double[] distance = new double[1];
+    for (int n = 0; n < 1000; n++) {
+      double[] point = new double[dimension + 1];
+      double norm = 0.0;
+      for (int d = 0; d < dimension; d++) {
+        point[d + 1] = 2.0 * rand.nextGaussian();
+        norm += point[d + 1] * point[d + 1];
+      }
+      int expected = -1;
+      double min = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < rows.length; i++) {
+        double dot = DenseKernel.get().dot(matrix, rows[i] * dimension, point, 1, dimension);
+        double d = norms[rows[i]] + norm - 2.0 * dot;
+        if (d < min) {
+          min = d;
+          expected = i;
+        }
+      }
+      assertEquals(expected, tree.nearest(point, 1, norm, distance));
+      assertEquals(min, distance[0], 0.0);
+    }
+  }
+  
+  @Test
+  public void testCentersUseTree() throws Exception {
+    Random rand = new Random(17L);
+    List<Vector> vecs = Lists.newArrayList();
+    for (int i = 0; i < 200; i++) {
+      vecs.add(Vectors.of(rand.nextDouble(), rand.nextDouble(), rand.nextDouble()));
+    }
+    assertTrue(KDTree.isWorthwhile(vecs.size(), 3));
+    Centers centers = new Centers(vecs);
+    for (int n = 0; n < 200; n++) {
+      Vector p = Vectors.of(rand.nextDouble(), rand.nextDouble(), rand.nextDouble());
+      int expected = -1;
+      double min = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < vecs.size(); i++) {
+        double d = vecs.get(i).minus(p).getLengthSquared();
+        if (d < min) {
+          min = d;
+          expected = i;
+        }
+      }
+      assertEquals(expected, centers.indexOfClosest(p));
+      assertEquals(min, centers.getDistanceSquared(p), 1e-9);
+    }
+  }
+}
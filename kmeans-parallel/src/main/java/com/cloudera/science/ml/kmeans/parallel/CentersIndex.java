@@ -15,62 +15,100 @@
 package com.cloudera.science.ml.kmeans.parallel;
 
 import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.CoarseIndex;
+import com.cloudera.science.ml.core.vectors.DenseKernel;
+import com.cloudera.science.ml.core.vectors.KDTree;
+import com.cloudera.science.ml.core.vectors.NearestIndex;
 import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
+import com.cloudera.science.ml.parallel.broadcast.Codec;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.mahout.math.Vector;
 
 /**
  * An internal data structure that manages the locations of the current centers during
  * k-means|| processing.
+ *
+ * <p>The points are stored in a single row-major {@code double[]} along with their
+ * precomputed squared lengths, and the id that each point has within each of the
+ * {@code Centers} instances that it belongs to is stored in a packed
+ * {@code (point, center)} matrix of ints, where -1 indicates that the point is not a
+ * member of that {@code Centers} instance.
+ *
+ * <p>Points are deduplicated by their contents, so a point that is sampled on several
+ * iterations or for several folds is only stored (and scanned) once. Each {@code Centers}
+ * instance also keeps the rows of its own points in id order, so that distances
+ * for a single fold can be computed without scanning the points of the other folds.
+ *
+ * <p>If the number of probes is set to a positive value, the closest point in each
+ * {@code Centers} that is too large to scan and too high-dimensional for a {@link KDTree}
+ * is found approximately with a {@link CoarseIndex} that scans that many of its cells.
  */
 class CentersIndex implements Serializable {
-  private final int[] pointsPerCenter;
-  private final Map<double[], Data> index;
+  /**
+   * A compact binary form of the index for broadcasting it to the tasks of a job,
+   * which only stores the values of the points, the point ids, the number of probes and the
+   * cells of each {@link CoarseIndex}, and rebuilds everything else when the index is read.
+   * The coarse indices are built before the index is written, so that they are clustered
+   * once by the client instead of once by every task.
+   */
+  public static final Codec<CentersIndex> CODEC = new IndexCodec();
   
+  private static final DenseKernel KERNEL = DenseKernel.get();
+  
+  private final int[] pointsPerCenter;
+  private int dimension;
+  private int numPoints;
+  private int probes;
+  private double[] points;
+  private double[] lengthSquared;
+  private int[] pointIds;
+  // For each center, the row of each of its points, indexed by point id
+  private final int[][] rowsPerCenter;
+  // Open-addressed hash table from the contents of a point to its row, or -1 if empty
+  private transient int[] table;
+  // For each center, a tree or coarse index over its points if it has enough of them,
+  // built on first use
+  private transient NearestIndex[] searches;
+  // The rows of the points of the centers that do not have a search index, which are scanned
+  private transient int[] scanRows;
+
+  /**
+   * Caller-owned buffers for the results of a distance computation, so that
+   * the same instance can be reused for every point a task processes.
+   */
   public static class Distances {
     public double[] clusterDistances;
     public int[] closestPoints;
-    
+    private double[] values;
+    private final double[] distance = new double[1];
+
     public Distances(double[] clusterDistances, int[] closestPoints) {
       this.clusterDistances = clusterDistances;
       this.closestPoints = closestPoints;
     }
   }
-  
-  private static class Data implements Serializable {
-    double lengthSquared;
-    Map<Integer, Integer> clusterCenters;
-    
-    public Data(double[] key) {
-      this.lengthSquared = 0;
-      for (double d : key) {
-        lengthSquared += d * d;
-      }
-      this.clusterCenters = Maps.newLinkedHashMap();
-    }
-    
-    public boolean hasClusterId(int clusterId) {
-      return clusterCenters.containsKey(clusterId);
-    }
-    
-    public void add(int clusterId, int centerId) {
-      this.clusterCenters.put(clusterId, centerId);
-    }
-  }
-  
+
   public CentersIndex(int numCenters) {
     this.pointsPerCenter = new int[numCenters];
-    this.index = Maps.newHashMap();
+    this.dimension = -1;
+    this.points = new double[0];
+    this.lengthSquared = new double[0];
+    this.pointIds = new int[0];
+    this.rowsPerCenter = new int[numCenters][0];
   }
-  
+
   public CentersIndex(List<Centers> centers) {
     this(centers.size());
     for (int centerId = 0; centerId < centers.size(); centerId++) {
@@ -79,7 +117,7 @@ class CentersIndex implements Serializable {
       }
     }
   }
-  
+
   public int getNumCenters() {
     return pointsPerCenter.length;
   }
@@ -87,63 +125,431 @@ class CentersIndex implements Serializable {
   public int[] getPointsPerCluster() {
     return pointsPerCenter;
   }
+
+  /**
+   * Returns the number of cells of a {@link CoarseIndex} that are scanned to find the
+   * closest point in each large {@code Centers}, or zero if the closest points are exact.
+   */
+  public int getProbes() {
+    return probes;
+  }
   
+  /**
+   * Sets the number of cells of a {@link CoarseIndex} that are scanned to find the closest
+   * point in each large {@code Centers}, where more probes give a higher recall at a higher
+   * cost, and zero (the default) means that the closest points are always exact.
+   */
+  public void setProbes(int probes) {
+    Preconditions.checkArgument(probes >= 0, "probes must be non-negative");
+    this.probes = probes;
+    this.searches = null;
+  }
+
+  /**
+   * Returns the number of distinct points stored in this index.
+   */
+  public int getNumPoints() {
+    return numPoints;
+  }
+
   public void add(double[] v, Integer... centerIds) {
     add(v, Arrays.asList(centerIds));
   }
-  
+
   public void add(double[] v, Iterable<Integer> centerIds) {
-    Data data = index.get(v);
-    if (data == null) {
-      data = new Data(v);
-      index.put(v, data);
+    if (dimension < 0) {
+      dimension = v.length;
     }
+    Preconditions.checkArgument(v.length == dimension,
+        "Expected a point of dimension %s, got %s", dimension, v.length);
+    int row = findOrAddPoint(v);
+    searches = null;
+    int base = row * pointsPerCenter.length;
     for (Integer centerId : centerIds) {
-      if (!data.hasClusterId(centerId)) {
+      if (pointIds[base + centerId] < 0) {
         int pointId = pointsPerCenter[centerId];
-        data.add(centerId, pointId);
+        int[] rows = rowsPerCenter[centerId];
+        if (pointId == rows.length) {
+          rows = Arrays.copyOf(rows, Math.max(16, 2 * pointId));
+          rowsPerCenter[centerId] = rows;
+        }
+        rows[pointId] = row;
+        pointIds[base + centerId] = pointId;
         pointsPerCenter[centerId]++;
       }
     }
   }
-  
+
+  private int findOrAddPoint(double[] v) {
+    if (table == null || 2 * (numPoints + 1) > table.length) {
+      rebuildTable(2 * (numPoints + 1));
+    }
+    double lenSq = 0.0;
+    for (double d : v) {
+      lenSq += d * d;
+    }
+    int mask = table.length - 1;
+    int slot = mix(Arrays.hashCode(v)) & mask;
+    while (table[slot] >= 0) {
+      int row = table[slot];
+      if (lengthSquared[row] == lenSq && sameValues(row, v)) {
+        return row;
+      }
+      slot = (slot + 1) & mask;
+    }
+    int row = addPoint(v, lenSq);
+    table[slot] = row;
+    return row;
+  }
+
+  private void rebuildTable(int minSize) {
+    int size = Integer.highestOneBit(Math.max(16, minSize - 1)) << 1;
+    table = new int[size];
+    Arrays.fill(table, -1);
+    int mask = size - 1;
+    for (int row = 0; row < numPoints; row++) {
+      int slot = mix(hashRow(row)) & mask;
+      while (table[slot] >= 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = row;
+    }
+  }
+
+  private int hashRow(int row) {
+    // Same as Arrays.hashCode(double[]) over the values in the row
+    int hash = 1;
+    int offset = row * dimension;
+    for (int i = 0; i < dimension; i++) {
+      long bits = Double.doubleToLongBits(points[offset + i]);
+      hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+    }
+    return hash;
+  }
+
+  private boolean sameValues(int row, double[] v) {
+    int offset = row * dimension;
+    for (int i = 0; i < dimension; i++) {
+      if (Double.doubleToLongBits(points[offset + i]) != Double.doubleToLongBits(v[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int mix(int hash) {
+    // Spread the bits so that linear probing works well with a power-of-two table
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    return hash ^ (hash >>> 7) ^ (hash >>> 4);
+  }
+
+  private int addPoint(double[] v, double lenSq) {
+    if (numPoints == lengthSquared.length) {
+      int capacity = Math.max(16, 2 * numPoints);
+      points = Arrays.copyOf(points, capacity * dimension);
+      lengthSquared = Arrays.copyOf(lengthSquared, capacity);
+      int oldSize = pointIds.length;
+      pointIds = Arrays.copyOf(pointIds, capacity * pointsPerCenter.length);
+      Arrays.fill(pointIds, oldSize, pointIds.length, -1);
+    }
+    int row = numPoints;
+    System.arraycopy(v, 0, points, row * dimension, dimension);
+    lengthSquared[row] = lenSq;
+    numPoints++;
+    return row;
+  }
+
+  /**
+   * Create a new {@code Distances} instance whose buffers are sized for this index.
+   */
+  public Distances newDistances() {
+    return new Distances(new double[pointsPerCenter.length], new int[pointsPerCenter.length]);
+  }
+
   public Distances getDistances(Vector vec) {
-    int[] closestPoints = new int[pointsPerCenter.length];
-    double[] distances = new double[pointsPerCenter.length];
+    Distances d = newDistances();
+    getDistances(vec, d);
+    return d;
+  }
+
+  /**
+   * Computes the squared distance from the given point to the closest point in each of
+   * the {@code Centers} in this index, writing the results into the given buffers.
+   */
+  public void getDistances(Vector vec, Distances out) {
+    int numCenters = pointsPerCenter.length;
+    double[] distances = out.clusterDistances;
+    int[] closestPoints = out.closestPoints;
     Arrays.fill(distances, Double.POSITIVE_INFINITY);
-    double lenSq = vec.getLengthSquared();
-    for (Map.Entry<double[], Data> e : index.entrySet()) {
-      double dist = e.getValue().lengthSquared + lenSq - 2.0 * dot(e.getKey(), vec);
-      for (Map.Entry<Integer, Integer> entry : e.getValue().clusterCenters.entrySet()) {
-        if (dist < distances[entry.getKey()]) {
-          distances[entry.getKey()] = dist;
-          closestPoints[entry.getKey()] = entry.getValue();
+    if (numPoints == 0) {
+      return;
+    }
+    if (searches == null) {
+      buildSearches(null, null);
+    }
+    double[] values = toValues(vec, out);
+    double lenSq = KERNEL.dot(values, 0, values, 0, dimension);
+    for (int row : scanRows) {
+      double dist = lengthSquared[row] + lenSq - 2.0 * dot(row * dimension, values);
+      int base = row * numCenters;
+      for (int centerId = 0; centerId < numCenters; centerId++) {
+        int pointId = pointIds[base + centerId];
+        if (pointId >= 0 && dist < distances[centerId]) {
+          distances[centerId] = dist;
+          closestPoints[centerId] = pointId;
         }
       }
     }
-    return new Distances(distances, closestPoints);
+    for (int centerId = 0; centerId < numCenters; centerId++) {
+      if (searches[centerId] != null) {
+        closestPoints[centerId] = searches[centerId].nearest(values, 0, lenSq, out.distance);
+      }
+      if (pointsPerCenter[centerId] > 0) {
+        distances[centerId] = distanceTo(rowsPerCenter[centerId][closestPoints[centerId]], values);
+      }
+    }
   }
   
+  /**
+   * Builds a {@link KDTree} over the points of each of the centers that has enough of them
+   * for their dimension, or a {@link CoarseIndex} if probes are set and there are enough of
+   * them for it, and collects the rows of the points of the other centers into the rows that
+   * {@link #getDistances(Vector, Distances)} scans.
+   * 
+   * @param cellCenters If not null, the cell centers of the coarse index of each center
+   * that has one, as written by the {@link #CODEC}
+   * @param cells If not null, the cells of the points of the coarse index of each center
+   * that has one, as written by the {@link #CODEC}
+   */
+  private void buildSearches(double[][] cellCenters, int[][] cells) {
+    NearestIndex[] built = new NearestIndex[pointsPerCenter.length];
+    boolean[] scanned = new boolean[numPoints];
+    int numScanned = 0;
+    for (int centerId = 0; centerId < pointsPerCenter.length; centerId++) {
+      int count = pointsPerCenter[centerId];
+      int[] rows = rowsPerCenter[centerId];
+      if (KDTree.isWorthwhile(count, dimension)) {
+        built[centerId] = new KDTree(points, lengthSquared, dimension, Arrays.copyOf(rows, count));
+      } else if (cells != null && cells[centerId] != null) {
+        built[centerId] = new CoarseIndex(points, lengthSquared, dimension,
+            Arrays.copyOf(rows, count), probes, cellCenters[centerId], cells[centerId]);
+      } else if (CoarseIndex.isWorthwhile(count, probes)) {
+        built[centerId] = new CoarseIndex(points, lengthSquared, dimension,
+            Arrays.copyOf(rows, count), probes);
+      } else {
+        for (int pointId = 0; pointId < count; pointId++) {
+          if (!scanned[rows[pointId]]) {
+            scanned[rows[pointId]] = true;
+            numScanned++;
+          }
+        }
+      }
+    }
+    int[] rows = new int[numScanned];
+    int next = 0;
+    for (int row = 0; row < numPoints; row++) {
+      if (scanned[row]) {
+        rows[next++] = row;
+      }
+    }
+    this.scanRows = rows;
+    this.searches = built;
+  }
+
+  /**
+   * Computes the squared distance from the given point to the closest point in the
+   * {@code Centers} with the given id, writing the result into that id's entry of
+   * the given buffers. Only the points that belong to that {@code Centers} are scanned,
+   * and the entries for the other ids are left untouched.
+   */
+  public void getDistances(Vector vec, int centerId, Distances out) {
+    double min = Double.POSITIVE_INFINITY;
+    int closest = 0;
+    int count = pointsPerCenter[centerId];
+    if (searches == null) {
+      buildSearches(null, null);
+    }
+    if (searches[centerId] != null) {
+      double[] values = toValues(vec, out);
+      double lenSq = KERNEL.dot(values, 0, values, 0, dimension);
+      closest = searches[centerId].nearest(values, 0, lenSq, out.distance);
+      min = out.distance[0];
+    } else if (count > 0) {
+      double[] values = toValues(vec, out);
+      double lenSq = KERNEL.dot(values, 0, values, 0, dimension);
+      int[] rows = rowsPerCenter[centerId];
+      for (int pointId = 0; pointId < count; pointId++) {
+        int row = rows[pointId];
+        double dist = lengthSquared[row] + lenSq - 2.0 * dot(row * dimension, values);
+        if (dist < min) {
+          min = dist;
+          closest = pointId;
+        }
+      }
+    }
+    out.clusterDistances[centerId] = count > 0 ? distanceTo(rowsPerCenter[centerId][closest],
+        out.values) : min;
+    out.closestPoints[centerId] = closest;
+  }
+
   public List<List<Weighted<Vector>>> getWeightedVectors(List<List<Long>> pointCounts) {
     List<List<Weighted<Vector>>> ret = Lists.newArrayList();
     for (int i = 0; i < pointCounts.size(); i++) {
       ret.add(Arrays.<Weighted<Vector>>asList(new Weighted[pointCounts.get(i).size()]));
     }
-    for (Map.Entry<double[], Data> e  : index.entrySet()) {
-      Vector v = Vectors.of(e.getKey());
-      for (Map.Entry<Integer, Integer> entry : e.getValue().clusterCenters.entrySet()) {
-        long weight = pointCounts.get(entry.getKey()).get(entry.getValue());
-        ret.get(entry.getKey()).set(entry.getValue(), new Weighted<Vector>(v, weight));
+    int numCenters = pointsPerCenter.length;
+    for (int row = 0; row < numPoints; row++) {
+      Vector v = Vectors.of(Arrays.copyOfRange(points, row * dimension, (row + 1) * dimension));
+      for (int centerId = 0; centerId < numCenters; centerId++) {
+        int pointId = pointIds[row * numCenters + centerId];
+        if (pointId >= 0) {
+          long weight = pointCounts.get(centerId).get(pointId);
+          ret.get(centerId).set(pointId, new Weighted<Vector>(v, weight));
+        }
       }
     }
     return ret;
   }
-  
-  private static double dot(double[] center, Vector vec) {
-    double prod = 0.0;
-    for (Vector.Element e : vec) {
-      prod += e.get() * center[e.index()];
+
+  private double[] toValues(Vector vec, Distances out) {
+    if (out.values == null || out.values.length != dimension) {
+      out.values = new double[dimension];
+    }
+    double[] values = out.values;
+    if (vec.isDense()) {
+      for (int i = 0; i < dimension; i++) {
+        values[i] = vec.getQuick(i);
+      }
+    } else {
+      Arrays.fill(values, 0.0);
+      Iterator<Vector.Element> iter = vec.iterateNonZero();
+      while (iter.hasNext()) {
+        Vector.Element e = iter.next();
+        values[e.index()] = e.get();
+      }
+    }
+    return values;
+  }
+
+  private double dot(int offset, double[] values) {
+    return KERNEL.dot(points, offset, values, 0, dimension);
+  }
+
+  /**
+   * Computes the squared distance from the given values to the point in the given row from
+   * the differences of their values, which is exact even when the expanded form that is used
+   * to find the closest point is not.
+   */
+  private double distanceTo(int row, double[] values) {
+    int offset = row * dimension;
+    double sum = 0.0;
+    for (int i = 0; i < dimension; i++) {
+      double diff = points[offset + i] - values[i];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    // Don't ship the unused capacity of the arrays to the tasks
+    points = Arrays.copyOf(points, numPoints * Math.max(dimension, 0));
+    lengthSquared = Arrays.copyOf(lengthSquared, numPoints);
+    pointIds = Arrays.copyOf(pointIds, numPoints * pointsPerCenter.length);
+    for (int i = 0; i < rowsPerCenter.length; i++) {
+      rowsPerCenter[i] = Arrays.copyOf(rowsPerCenter[i], pointsPerCenter[i]);
+    }
+    out.defaultWriteObject();
+  }
+
+  private static class IndexCodec implements Codec<CentersIndex> {
+    @Override
+    public void write(CentersIndex index, DataOutput out) throws IOException {
+      int numCenters = index.pointsPerCenter.length;
+      out.writeInt(numCenters);
+      out.writeInt(index.dimension);
+      out.writeInt(index.numPoints);
+      out.writeInt(index.probes);
+      for (int i = 0; i < index.numPoints * index.dimension; i++) {
+        out.writeDouble(index.points[i]);
+      }
+      for (int i = 0; i < index.numPoints * numCenters; i++) {
+        out.writeInt(index.pointIds[i]);
+      }
+      if (index.probes > 0 && index.searches == null) {
+        index.buildSearches(null, null);
+      }
+      for (int centerId = 0; centerId < numCenters; centerId++) {
+        NearestIndex search = index.probes > 0 ? index.searches[centerId] : null;
+        if (search instanceof CoarseIndex) {
+          CoarseIndex coarse = (CoarseIndex) search;
+          out.writeBoolean(true);
+          for (double d : coarse.getCellCenters()) {
+            out.writeDouble(d);
+          }
+          for (int cell : coarse.getCells()) {
+            out.writeInt(cell);
+          }
+        } else {
+          out.writeBoolean(false);
+        }
+      }
+    }
+
+    @Override
+    public CentersIndex read(DataInput in) throws IOException {
+      CentersIndex index = new CentersIndex(in.readInt());
+      int numCenters = index.pointsPerCenter.length;
+      int dimension = in.readInt();
+      int numPoints = in.readInt();
+      index.dimension = dimension;
+      index.numPoints = numPoints;
+      index.probes = in.readInt();
+      index.points = new double[numPoints * Math.max(dimension, 0)];
+      index.lengthSquared = new double[numPoints];
+      for (int row = 0; row < numPoints; row++) {
+        double lenSq = 0.0;
+        for (int i = row * dimension; i < (row + 1) * dimension; i++) {
+          double d = in.readDouble();
+          index.points[i] = d;
+          lenSq += d * d;
+        }
+        index.lengthSquared[row] = lenSq;
+      }
+      index.pointIds = new int[numPoints * numCenters];
+      for (int i = 0; i < index.pointIds.length; i++) {
+        int pointId = in.readInt();
+        index.pointIds[i] = pointId;
+        if (pointId >= 0) {
+          index.pointsPerCenter[i % numCenters]++;
+        }
+      }
+      for (int centerId = 0; centerId < numCenters; centerId++) {
+        index.rowsPerCenter[centerId] = new int[index.pointsPerCenter[centerId]];
+      }
+      for (int i = 0; i < index.pointIds.length; i++) {
+        if (index.pointIds[i] >= 0) {
+          index.rowsPerCenter[i % numCenters][index.pointIds[i]] = i / numCenters;
+        }
+      }
+      double[][] cellCenters = new double[numCenters][];
+      int[][] cells = new int[numCenters][];
+      for (int centerId = 0; centerId < numCenters; centerId++) {
+        if (in.readBoolean()) {
+          int count = index.pointsPerCenter[centerId];
+          cellCenters[centerId] = new double[CoarseIndex.getNumCells(count) * dimension];
+          for (int i = 0; i < cellCenters[centerId].length; i++) {
+            cellCenters[centerId][i] = in.readDouble();
+          }
+          cells[centerId] = new int[count];
+          for (int i = 0; i < count; i++) {
+            cells[centerId][i] = in.readInt();
+          }
+        }
+      }
+      if (index.probes > 0) {
+        index.buildSearches(cellCenters, cells);
+      }
+      return index;
     }
-    return prod;
   }
 }
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+import org.apache.crunch.CrunchRuntimeException;
+
+import com.google.common.io.Files;
+
+/**
+ * The state of a k-means|| initialization after a completed iteration, which is written
+ * to a local file so that a failed run can be resumed without redoing the iterations that
+ * had already finished.
+ *
+ * <p>A checkpoint records a fingerprint of the parameters and the input of the run that
+ * wrote it, so that it is only resumed by the same run, and the seed that the samples of
+ * each iteration are drawn with, so that a resumed run draws the same samples that the
+ * original run would have.
+ */
+class Checkpoint implements Serializable {
+  private final String fingerprint;
+  // The number of iterations that have been completed
+  private final int iteration;
+  // Whether the stopping criteria were met on the last completed iteration
+  private final boolean converged;
+  private final CentersIndex centers;
+  // The seed of the sampling for the first iteration, which is incremented for each iteration
+  private final long seed;
+  private final List<double[]> costHistory;
+
+  public Checkpoint(String fingerprint, int iteration, boolean converged, CentersIndex centers,
+      long seed, List<double[]> costHistory) {
+    this.fingerprint = fingerprint;
+    this.iteration = iteration;
+    this.converged = converged;
+    this.centers = centers;
+    this.seed = seed;
+    this.costHistory = costHistory;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public int getIteration() {
+    return iteration;
+  }
+
+  public boolean isConverged() {
+    return converged;
+  }
+
+  public CentersIndex getCenters() {
+    return centers;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  public List<double[]> getCostHistory() {
+    return costHistory;
+  }
+
+  /**
+   * Reads the checkpoint from the given file, or returns null if the file does not exist.
+   */
+  public static Checkpoint read(File file) {
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      ObjectInputStream ois = new ObjectInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        return (Checkpoint) ois.readObject();
+      } finally {
+        ois.close();
+      }
+    } catch (IOException e) {
+      throw new CrunchRuntimeException(e);
+    } catch (ClassNotFoundException e) {
+      throw new CrunchRuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes this checkpoint to the given file. The checkpoint is written to a temporary file
+   * first and then moved into place, so that a failure while writing it leaves the previous
+   * checkpoint intact.
+   */
+  public void write(File file) {
+    File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+    try {
+      ObjectOutputStream oos = new ObjectOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        oos.writeObject(this);
+      } finally {
+        oos.close();
+      }
+      Files.move(tmp, file);
+    } catch (IOException e) {
+      throw new CrunchRuntimeException(e);
+    }
+  }
+}
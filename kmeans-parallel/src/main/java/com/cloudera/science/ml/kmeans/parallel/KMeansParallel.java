@@ -16,23 +16,32 @@ package com.cloudera.science.ml.kmeans.parallel;
 
 import static org.apache.crunch.types.avro.Avros.doubles;
 import static org.apache.crunch.types.avro.Avros.ints;
+import static org.apache.crunch.types.avro.Avros.longs;
 import static org.apache.crunch.types.avro.Avros.pairs;
 import static org.apache.crunch.types.avro.Avros.tableOf;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.UUID;
 
+import org.apache.crunch.CombineFn;
 import org.apache.crunch.DoFn;
 import org.apache.crunch.Emitter;
+import org.apache.crunch.MapFn;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.PObject;
 import org.apache.crunch.PTable;
 import org.apache.crunch.Pair;
 import org.apache.crunch.fn.Aggregators;
+import org.apache.crunch.materialize.pobject.PObjectImpl;
 import org.apache.crunch.types.PTableType;
 import org.apache.crunch.types.PType;
 import org.apache.crunch.types.PTypeFamily;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.mahout.math.Vector;
 
 import com.cloudera.science.ml.avro.MLVector;
@@ -44,13 +53,22 @@ import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.VectorConvert;
 import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
+import com.cloudera.science.ml.kmeans.core.KMeansEvaluation;
+import com.cloudera.science.ml.kmeans.core.StoppingCriteria;
 import com.cloudera.science.ml.kmeans.parallel.CentersIndex.Distances;
+import com.cloudera.science.ml.parallel.broadcast.Broadcast;
 import com.cloudera.science.ml.parallel.crossfold.Crossfold;
 import com.cloudera.science.ml.parallel.pobject.ListOfListsPObject;
 import com.cloudera.science.ml.parallel.pobject.ListPObject;
 import com.cloudera.science.ml.parallel.sample.ReservoirSampling;
+import com.cloudera.science.ml.parallel.types.MLAvros;
+import com.cloudera.science.ml.parallel.types.PackedVectors;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
 
 /**
  * <p>An implementation of the k-means|| algorithm, as described in
@@ -70,8 +88,138 @@ public class KMeansParallel {
       .addDouble("distance")
       .build();
   
+  /**
+   * The default number of reduce partitions for each shard of the centers in a
+   * center-partitioned assignment.
+   */
+  public static final int DEFAULT_PARTITIONS_PER_SHARD = 10;
+  
   private final Random random;
+  private final boolean incremental;
+  private final double minRelativeCostDrop;
+  private final double minCostPerSample;
+  private final int targetSketchSize;
+  private final int maxSketchSize;
+  private final boolean cacheInput;
+  private final File checkpointFile;
+  private final String checkpointInput;
+  
+  public static Builder builder() {
+    return new Builder();
+  }
+  
+  public static class Builder {
+    private Random random;
+    private boolean incremental;
+    private double minRelativeCostDrop;
+    private double minCostPerSample;
+    private int targetSketchSize;
+    private int maxSketchSize;
+    private boolean cacheInput;
+    private File checkpointFile;
+    private String checkpointInput = "";
     
+    /**
+     * Use a fixed {@code Random} instance for running the k-means algorithm,
+     * for testing purposes.
+     */
+    public Builder random(Random random) {
+      this.random = random;
+      return this;
+    }
+    
+    /**
+     * If true, each iteration of the initialization carries the minimum distance of
+     * every point forward from the previous iteration and only compares the point to
+     * the candidates that were added on the previous iteration, instead of rescoring
+     * it against all of the candidates that have been chosen so far.
+     */
+    public Builder incremental(boolean incremental) {
+      this.incremental = incremental;
+      return this;
+    }
+    
+    /**
+     * Stop the initialization before the requested number of iterations once the
+     * relative drop in the cost of every fold between two consecutive iterations
+     * falls below the given value.
+     */
+    public Builder minRelativeCostDrop(double minRelativeCostDrop) {
+      Preconditions.checkArgument(minRelativeCostDrop >= 0.0);
+      this.minRelativeCostDrop = minRelativeCostDrop;
+      return this;
+    }
+    
+    /**
+     * Stop the initialization before the requested number of iterations once the
+     * cost of every fold divided by the number of points sampled for it on each
+     * iteration falls below the given value.
+     */
+    public Builder minCostPerSample(double minCostPerSample) {
+      Preconditions.checkArgument(minCostPerSample >= 0.0);
+      this.minCostPerSample = minCostPerSample;
+      return this;
+    }
+    
+    /**
+     * Choose the number of points to sample for each fold on each iteration from the
+     * observed cost and the number of candidates that the fold still needs to reach the
+     * given size, instead of sampling a fixed number of points on every iteration.
+     */
+    public Builder targetSketchSize(int targetSketchSize) {
+      Preconditions.checkArgument(targetSketchSize >= 0);
+      this.targetSketchSize = targetSketchSize;
+      return this;
+    }
+    
+    /**
+     * Never sample more points for a fold once it has the given number of candidates.
+     */
+    public Builder maxSketchSize(int maxSketchSize) {
+      Preconditions.checkArgument(maxSketchSize >= 0);
+      this.maxSketchSize = maxSketchSize;
+      return this;
+    }
+    
+    /**
+     * If true, the initialization writes the fold-tagged input out once in the compact
+     * binary form defined by {@link PackedVectors} and reads that copy on every pass
+     * over the data, instead of decoding and assigning folds to the input on every pass.
+     */
+    public Builder cacheInput(boolean cacheInput) {
+      this.cacheInput = cacheInput;
+      return this;
+    }
+    
+    /**
+     * Save the state of the initialization to the given local file after every iteration,
+     * and resume from the state in that file if it already exists when the initialization
+     * starts, so that a failed run does not have to repeat the iterations that finished.
+     * The file is deleted once the initialization completes, and a checkpoint that was
+     * written by a run with different parameters is rejected.
+     */
+    public Builder checkpointFile(File checkpointFile) {
+      this.checkpointFile = checkpointFile;
+      return this;
+    }
+    
+    /**
+     * Same as {@link #checkpointFile(File)}, but also stores a description of the input
+     * (such as its paths) in the checkpoint, so that a checkpoint that was written for
+     * different input is rejected.
+     */
+    public Builder checkpointFile(File checkpointFile, String checkpointInput) {
+      this.checkpointFile = checkpointFile;
+      this.checkpointInput = Preconditions.checkNotNull(checkpointInput);
+      return this;
+    }
+    
+    public KMeansParallel build() {
+      return new KMeansParallel(random, incremental, minRelativeCostDrop, minCostPerSample,
+          targetSketchSize, maxSketchSize, cacheInput, checkpointFile, checkpointInput);
+    }
+  }
+  
   public KMeansParallel() {
     this(null);
   }
@@ -81,7 +229,21 @@ public class KMeansParallel {
    * for running the k-means algorithm for testing purposes.
    */
   public KMeansParallel(Random random) {
+    this(random, false, 0.0, 0.0, 0, 0, false, null, "");
+  }
+  
+  private KMeansParallel(Random random, boolean incremental, double minRelativeCostDrop,
+      double minCostPerSample, int targetSketchSize, int maxSketchSize, boolean cacheInput,
+      File checkpointFile, String checkpointInput) {
     this.random = random;
+    this.incremental = incremental;
+    this.minRelativeCostDrop = minRelativeCostDrop;
+    this.minCostPerSample = minCostPerSample;
+    this.targetSketchSize = targetSketchSize;
+    this.maxSketchSize = maxSketchSize;
+    this.cacheInput = cacheInput;
+    this.checkpointFile = checkpointFile;
+    this.checkpointInput = checkpointInput;
   }
   
   /**
@@ -124,11 +286,158 @@ public class KMeansParallel {
    */
   public <V extends Vector> PCollection<Record> computeClusterAssignments(
       PCollection<V> vecs, List<Centers> centers, PType<Record> recordType) {
+    return computeClusterAssignments(vecs, centers, recordType, 0);
+  }
+  
+  /**
+   * Same as the other {@code computeClusterAssignments} method, but finds the closest center
+   * in each of the {@code Centers} that has many points approximately, by clustering its
+   * points into cells and only scanning the points in the given number of cells that are
+   * closest to each vector. More probes give a higher recall (as measured by
+   * {@link #getAssignmentRecall}) at the cost of more distance computations.
+   * 
+   * @param vecs The named vectors, with the name used as a unique identifier
+   * @param centers The centers
+   * @param probes The number of cells to scan for each vector, or zero for exact assignments
+   * @return A {@code PCollection<Record> containing the cluster assignment info for each point
+   */
+  public <V extends Vector> PCollection<Record> computeClusterAssignments(
+      PCollection<V> vecs, List<Centers> centers, PType<Record> recordType, int probes) {
     CentersIndex index = new CentersIndex(centers);
+    index.setProbes(probes);
     return vecs.parallelDo("assignments", new AssignedCenterFn<V>(index),
         recordType);
   }
   
+  /**
+   * Same as the other {@code computeClusterAssignments} methods, but for sets of centers that
+   * are too large to fit in the memory of a single task, using
+   * {@value #DEFAULT_PARTITIONS_PER_SHARD} reduce partitions for each shard of the centers.
+   */
+  public <V extends Vector> PCollection<Record> computeClusterAssignments(
+      PCollection<V> vecs, List<Centers> centers, PType<Record> recordType, int probes,
+      int numShards) {
+    return computeClusterAssignments(vecs, centers, recordType, probes, numShards,
+        DEFAULT_PARTITIONS_PER_SHARD);
+  }
+  
+  /**
+   * Same as the other {@code computeClusterAssignments} methods, but for sets of centers that
+   * are too large to fit in the memory of a single task. The points of the centers are split
+   * into the given number of shards of about the same size, which are broadcast separately.
+   * 
+   * <p>In the first phase, each vector is given a unique id and replicated to each of the
+   * shards, where the vectors for a shard are spread over the given number of partitions.
+   * The partitions of a shard have adjacent keys, so a reduce task only loads a shard once
+   * no matter how many of its partitions it is given, and it only keeps one shard in memory
+   * at a time. In the second phase, the closest centers from the shards are combined by the
+   * unique id of the vector and the {@code Centers} to find the closest center overall, so
+   * the names of the vectors do not need to be unique.
+   * 
+   * @param vecs The named vectors, with the name used as the vector_id of the output
+   * @param centers The centers
+   * @param probes The number of cells to scan for each vector, or zero for exact assignments
+   * @param numShards The number of shards to split the points of the centers into
+   * @param partitionsPerShard The number of reduce partitions to spread the vectors for
+   * each shard over
+   * @return A {@code PCollection<Record> containing the cluster assignment info for each point
+   */
+  public <V extends Vector> PCollection<Record> computeClusterAssignments(
+      PCollection<V> vecs, List<Centers> centers, PType<Record> recordType, int probes,
+      int numShards, int partitionsPerShard) {
+    Preconditions.checkArgument(numShards > 0, "numShards must be positive");
+    Preconditions.checkArgument(partitionsPerShard > 0, "partitionsPerShard must be positive");
+    if (numShards == 1) {
+      return computeClusterAssignments(vecs, centers, recordType, probes);
+    }
+    List<CentersIndex> shards = Lists.newArrayList();
+    List<int[]> offsets = Lists.newArrayList();
+    shardCenters(centers, numShards, probes, shards, offsets);
+    
+    PTypeFamily ptf = vecs.getTypeFamily();
+    return vecs
+        .parallelDo("replicate-points", new ReplicateFn<V>(shards.size(), partitionsPerShard),
+            ptf.tableOf(ptf.ints(), ptf.pairs(ptf.strings(), vecs.getPType())))
+        .groupByKey(shards.size() * partitionsPerShard)
+        .parallelDo("shard-assignments",
+            new ShardAssignmentFn<V>(shards, offsets, partitionsPerShard),
+            ptf.tableOf(ptf.pairs(ptf.strings(), ptf.ints()),
+                ptf.pairs(ptf.strings(), ptf.pairs(ptf.ints(), ptf.doubles()))))
+        .groupByKey()
+        .combineValues(new ClosestCombineFn())
+        .parallelDo("assignments", new ShardedAssignmentFn(), recordType);
+  }
+  
+  /**
+   * Splits the points of the given centers, in order, into shards with about the same number
+   * of points each, recording the id of the first point of each {@code Centers} in each shard
+   * (or -1 if the shard does not have any of its points) in the given offsets.
+   */
+  private static void shardCenters(List<Centers> centers, int numShards, int probes,
+      List<CentersIndex> shards, List<int[]> offsets) {
+    Preconditions.checkArgument(centers.size() > 0, "No centers specified");
+    int numPoints = 0;
+    for (Centers c : centers) {
+      numPoints += c.size();
+    }
+    int pointsPerShard = Math.max(1, (numPoints + numShards - 1) / numShards);
+    CentersIndex shard = null;
+    int[] offset = null;
+    int shardPoints = 0;
+    for (int centerId = 0; centerId < centers.size(); centerId++) {
+      Centers c = centers.get(centerId);
+      for (int pointId = 0; pointId < c.size(); pointId++) {
+        if (shard == null || shardPoints == pointsPerShard) {
+          shard = new CentersIndex(centers.size());
+          shard.setProbes(probes);
+          offset = new int[centers.size()];
+          Arrays.fill(offset, -1);
+          shards.add(shard);
+          offsets.add(offset);
+          shardPoints = 0;
+        }
+        if (offset[centerId] < 0) {
+          offset[centerId] = pointId;
+        }
+        shard.add(Vectors.toArray(c.get(pointId)), centerId);
+        shardPoints++;
+      }
+    }
+  }
+  
+  /**
+   * Measures the recall of the approximate assignments that are computed with the given
+   * number of probes on a sample of the points, which is the fraction of the pairs of a point
+   * and a {@code Centers} for which the approximate assignment is as close as the exact one.
+   * 
+   * @param sample The points to measure the recall on
+   * @param centers The centers
+   * @param probes The number of cells to scan for each point
+   * @return The recall, between zero and one
+   */
+  public double getAssignmentRecall(Iterable<? extends Vector> sample, List<Centers> centers,
+      int probes) {
+    CentersIndex exact = new CentersIndex(centers);
+    CentersIndex approx = new CentersIndex(centers);
+    approx.setProbes(probes);
+    Distances e = exact.newDistances();
+    Distances a = approx.newDistances();
+    long matched = 0L;
+    long total = 0L;
+    for (Vector v : sample) {
+      exact.getDistances(v, e);
+      approx.getDistances(v, a);
+      for (int i = 0; i < e.closestPoints.length; i++) {
+        if (a.closestPoints[i] == e.closestPoints[i] ||
+            a.clusterDistances[i] <= e.clusterDistances[i]) {
+          matched++;
+        }
+        total++;
+      }
+    }
+    return total == 0L ? 1.0 : ((double) matched) / total;
+  }
+  
   /**
    * For each of the points in each of the given {@code Centers}, calculate the number of points
    * in the dataset that are closer to that point than they are to any other point in the same
@@ -145,12 +454,135 @@ public class KMeansParallel {
     return getCountsOfClosest(cf.apply(vecs), new CentersIndex(centers));
   }
 
-  private <V extends Vector> PObject<List<List<Long>>> getCountsOfClosest(
+  <V extends Vector> PObject<List<List<Long>>> getCountsOfClosest(
       PCollection<Pair<Integer, V>> vecs, CentersIndex centers) {
     return new ListOfListsPObject<Long>(
         vecs
-        .parallelDo("closest-center", new ClosestCenterFn<V>(centers), pairs(ints(), ints()))
-        .count(), centers.getPointsPerCluster(), 0L);
+        .parallelDo("closest-center", new ClosestCenterFn<V>(centers),
+            tableOf(pairs(ints(), ints()), longs()))
+        .groupByKey(1)
+        .combineValues(Aggregators.<Pair<Integer, Integer>>SUM_LONGS()),
+        centers.getPointsPerCluster(), 0L);
+  }
+  
+  /**
+   * Evaluates each pair of test and train {@code Centers} on the full dataset in a single pass,
+   * computing the cost of the points relative to each of the centers and the matrix of how many
+   * points are closest to each combination of a test center and a train center, which are summed
+   * up inside of each task before they are shuffled. The prediction strength, stable clusters,
+   * and stable points metrics are then derived from them on the client by
+   * {@link KMeansEvaluation#fromAssignments}.
+   * 
+   * @param vecs The dataset
+   * @param testCenters The centers created from the test data
+   * @param trainCenters The centers created from the training data, in the same order
+   * @return A reference to the Crunch job that calculates the evaluation
+   */
+  public <V extends Vector> PObject<KMeansEvaluation> evaluate(PCollection<V> vecs,
+      List<Centers> testCenters, List<Centers> trainCenters) {
+    Preconditions.checkArgument(testCenters.size() > 0, "No centers specified");
+    Preconditions.checkArgument(testCenters.size() == trainCenters.size(),
+        "Must have the same number of test and train centers");
+    CentersIndex index = new CentersIndex(
+        ImmutableList.copyOf(Iterables.concat(testCenters, trainCenters)));
+    return new EvaluationPObject(
+        vecs
+        .parallelDo("evaluation", new EvaluationFn<V>(index),
+            tableOf(pairs(ints(), ints()), doubles()))
+        .groupByKey(1)
+        .combineValues(Aggregators.<Pair<Integer, Integer>>SUM_DOUBLES()),
+        index.getPointsPerCluster());
+  }
+  
+  /**
+   * Runs Lloyd's algorithm over the full dataset, starting from the given {@code Centers},
+   * until the stopping criteria is met. Each iteration is a single pass over the data.
+   * 
+   * @param vecs The dataset
+   * @param centers The initial centers
+   * @param stoppingCriteria The rule for ending the iterations
+   * @return The centers that the algorithm converged toward
+   */
+  public <V extends Vector> Centers lloydsAlgorithm(PCollection<V> vecs, Centers centers,
+      StoppingCriteria stoppingCriteria) {
+    return lloydsAlgorithm(vecs, ImmutableList.of(centers), stoppingCriteria).get(0);
+  }
+  
+  /**
+   * Same as the other {@code lloydsAlgorithm} method, but refines several {@code Centers}
+   * instances at once. All of the instances that have not met the stopping criteria yet are
+   * updated in the same pass over the data.
+   */
+  public <V extends Vector> List<Centers> lloydsAlgorithm(PCollection<V> vecs,
+      List<Centers> centers, StoppingCriteria stoppingCriteria) {
+    Preconditions.checkArgument(centers.size() > 0, "No centers specified");
+    List<Centers> current = Lists.newArrayList(centers);
+    List<Centers> last = Lists.newArrayList(Collections.<Centers>nCopies(centers.size(), null));
+    boolean[] stopped = new boolean[centers.size()];
+    int iteration = 0;
+    while (true) {
+      List<Integer> active = Lists.newArrayList();
+      for (int i = 0; i < current.size(); i++) {
+        if (!stopped[i]) {
+          stopped[i] = stoppingCriteria.stop(iteration, current.get(i), last.get(i));
+          if (!stopped[i]) {
+            active.add(i);
+          }
+        }
+      }
+      if (active.isEmpty()) {
+        break;
+      }
+      List<Centers> activeCenters = Lists.newArrayList();
+      for (Integer i : active) {
+        activeCenters.add(current.get(i));
+      }
+      List<Centers> updated = updateCenters(vecs, activeCenters);
+      for (int j = 0; j < active.size(); j++) {
+        int i = active.get(j);
+        last.set(i, current.get(i));
+        current.set(i, updated.get(j));
+      }
+      iteration++;
+    }
+    return current;
+  }
+  
+  /**
+   * Performs a single update cycle of Lloyd's algorithm over the full dataset for each
+   * of the given {@code Centers}: each point is assigned to its closest center, and every
+   * center is moved to the centroid of the points assigned to it. A center that no points
+   * were assigned to stays where it was.
+   * 
+   * @param vecs The dataset
+   * @param centers The current centers
+   * @return The new centers computed by the update
+   */
+  public <V extends Vector> List<Centers> updateCenters(PCollection<V> vecs, List<Centers> centers) {
+    Preconditions.checkArgument(centers.size() > 0, "No centers specified");
+    CentersIndex index = new CentersIndex(centers);
+    Iterable<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> sums = vecs
+        .parallelDo("centroid-sums", new CentroidSumFn<V>(index),
+            tableOf(pairs(ints(), ints()), pairs(MLAvros.vector(), longs())))
+        .groupByKey(1)
+        .combineValues(new CentroidSumCombineFn())
+        .materialize();
+    List<List<Vector>> points = Lists.newArrayList();
+    for (Centers c : centers) {
+      points.add(Lists.newArrayList(c));
+    }
+    for (Pair<Pair<Integer, Integer>, Pair<Vector, Long>> p : sums) {
+      Vector sum = p.second().first();
+      long count = p.second().second();
+      if (count > 0) {
+        points.get(p.first().first()).set(p.first().second(), sum.divide(count));
+      }
+    }
+    List<Centers> updated = Lists.newArrayList();
+    for (List<Vector> c : points) {
+      updated.add(new Centers(c));
+    }
+    return updated;
   }
   
   public <V extends Vector> List<Weighted<Vector>> initialization(
@@ -170,35 +602,212 @@ public class KMeansParallel {
   public <V extends Vector> List<List<Weighted<Vector>>> initialization(
       PCollection<V> vecs, int numIterations, int samplesPerIteration,
       List<Vector> initialPoints, Crossfold crossfold) {
-
-    int[] lValues = new int[crossfold.getNumFolds()];
+    return initialization(vecs, numIterations, samplesPerIteration, initialPoints, crossfold, null);
+  }
+  
+  /**
+   * Same as the other {@code initialization} method, but also reports the cost of each fold
+   * of the sketch at the start of every iteration that was run. The costs are computed in the
+   * same pass over the data as the scores for the sampling, and are also used to decide whether
+   * or not the initialization can stop early.
+   * 
+   * @param costs If not null, the per-fold costs of each iteration are added to this list
+   */
+  public <V extends Vector> List<List<Weighted<Vector>>> initialization(
+      PCollection<V> vecs, int numIterations, int samplesPerIteration,
+      List<Vector> initialPoints, Crossfold crossfold, List<List<Double>> costs) {
+    PCollection<Pair<Integer, V>> folds = crossfold.apply(vecs);
+    if (cacheInput) {
+      return initialization(PackedVectors.cache(folds), crossfold.getNumFolds(),
+          numIterations, samplesPerIteration, initialPoints, costs);
+    }
+    return initialization(folds, crossfold.getNumFolds(), numIterations, samplesPerIteration,
+        initialPoints, costs);
+  }
+  
+  private <V extends Vector> List<List<Weighted<Vector>>> initialization(
+      PCollection<Pair<Integer, V>> folds, int numFolds, int numIterations,
+      int samplesPerIteration, List<Vector> initialPoints, List<List<Double>> costs) {
     List<Integer> foldIds = Lists.newArrayList();
-    for (int i = 0; i < crossfold.getNumFolds(); i++) {
-      lValues[i] = samplesPerIteration;
+    for (int i = 0; i < numFolds; i++) {
       foldIds.add(i);
     }
     
-    CentersIndex centers = new CentersIndex(crossfold.getNumFolds());
+    CentersIndex centers = new CentersIndex(numFolds);
     for (int i = 0; i < initialPoints.size(); i++) {
       centers.add(Vectors.toArray(initialPoints.get(i)), foldIds);
     }
+    // The samples of each iteration are drawn with their own seed, since the sampling
+    // function is serialized into the job along with the Random that it is given
+    Long seed = null;
+    if (random != null) {
+      seed = random.nextLong();
+    } else if (checkpointFile != null) {
+      seed = new Random().nextLong();
+    }
+    int start = 0;
+    List<double[]> costHistory = Lists.newArrayList();
+    Checkpoint checkpoint = checkpointFile == null ? null : Checkpoint.read(checkpointFile);
+    String fingerprint = null;
+    if (checkpointFile != null) {
+      // Without a fixed Random, the seed of the checkpoint is used instead of a new one
+      fingerprint = getFingerprint(numFolds, numIterations, samplesPerIteration, initialPoints,
+          random == null ? null : seed);
+    }
+    if (checkpoint != null) {
+      Preconditions.checkArgument(fingerprint.equals(checkpoint.getFingerprint()),
+          "Checkpoint %s was written by a run with different parameters or input (%s), expected %s",
+          checkpointFile, checkpoint.getFingerprint(), fingerprint);
+      centers = checkpoint.getCenters();
+      seed = checkpoint.getSeed();
+      costHistory.addAll(checkpoint.getCostHistory());
+      if (costs != null) {
+        for (double[] c : costHistory) {
+          costs.add(Doubles.asList(c));
+        }
+      }
+      start = checkpoint.isConverged() ? numIterations : checkpoint.getIteration();
+    }
     
-    PType<V> ptype = vecs.getPType();
+    PType<V> ptype = (PType<V>) folds.getPType().getSubTypes().get(1);
     PTypeFamily ptf = ptype.getFamily();
     PTableType<Integer, Pair<V, Double>> ptt = ptf.tableOf(
         ptf.ints(), ptf.pairs(ptype, ptf.doubles()));
-    PCollection<Pair<Integer, V>> folds = crossfold.apply(vecs);
-    for (int i = 0; i < numIterations; i++) {
-      ScoringFn<V> scoringFn = new ScoringFn<V>(centers);
-      PTable<Integer, Pair<V, Double>> scores = folds.parallelDo(scoringFn, ptt);
+    PTable<Integer, Pair<V, Double>> scores = null;
+    CentersIndex added = null;
+    boolean trackCosts = costs != null || minRelativeCostDrop > 0.0 || minCostPerSample > 0.0 ||
+        targetSketchSize > 0;
+    for (int i = start; i < numIterations; i++) {
+      int[] lValues = getSampleSizes(samplesPerIteration, numIterations - i,
+          centers.getPointsPerCluster(), costHistory);
+      if (Ints.max(lValues) == 0) {
+        break;
+      }
+      if (incremental && scores != null) {
+        scores = scores.parallelDo("rescoring", new RescoringFn<V>(added), ptt);
+      } else {
+        scores = folds.parallelDo("scoring", new ScoringFn<V>(centers), ptt);
+      }
+      if (incremental || trackCosts) {
+        // Persist the scores so that the next iteration can start from them, and so that
+        // the fold costs and the sample below, which group the scores separately, both
+        // read them instead of each running the scoring pass over the input
+        scores.materialize();
+      }
+      Iterable<Pair<Integer, Double>> foldCosts = null;
+      if (trackCosts) {
+        foldCosts = scores
+            .parallelDo("fold-costs", new FoldCostFn<V>(numFolds),
+                tableOf(ints(), doubles()))
+            .groupByKey(1)
+            .combineValues(Aggregators.<Integer>SUM_DOUBLES())
+            .materialize();
+      }
       PCollection<Pair<Integer, V>> sample = ReservoirSampling.groupedWeightedSample(
-          scores, lValues, random);
-      updateCenters(sample.materialize(), centers);
+          scores, lValues, seed == null ? null : new Random(seed + i));
+      added = new CentersIndex(numFolds);
+      updateCenters(sample.materialize(), centers, added);
+      boolean converged = false;
+      if (trackCosts) {
+        double[] currentCosts = new double[numFolds];
+        for (Pair<Integer, Double> p : foldCosts) {
+          currentCosts[p.first()] = p.second();
+        }
+        if (costs != null) {
+          costs.add(Doubles.asList(currentCosts));
+        }
+        double[] lastCosts = costHistory.isEmpty() ? null : costHistory.get(costHistory.size() - 1);
+        costHistory.add(currentCosts);
+        converged = converged(currentCosts, lastCosts, lValues);
+      }
+      if (checkpointFile != null) {
+        new Checkpoint(fingerprint, i + 1, converged, centers, seed, costHistory)
+            .write(checkpointFile);
+      }
+      if (converged) {
+        break;
+      }
+    }
+    List<List<Weighted<Vector>>> ret = getWeightedVectors(folds, centers);
+    if (checkpointFile != null) {
+      // So that a later run with the same checkpoint file starts over
+      checkpointFile.delete();
+    }
+    return ret;
+  }
+  
+  /**
+   * Describes the parameters of an initialization, so that a checkpoint is only resumed
+   * by a run with the same parameters, input and initial points.
+   */
+  private String getFingerprint(int numFolds, int numIterations, int samplesPerIteration,
+      List<Vector> initialPoints, Long seed) {
+    int initialHash = 1;
+    for (Vector v : initialPoints) {
+      initialHash = 31 * initialHash + Arrays.hashCode(Vectors.toArray(v));
+    }
+    return String.format("folds=%d,iterations=%d,samples=%d,incremental=%s,minRelativeCostDrop=%s,"
+        + "minCostPerSample=%s,targetSketchSize=%d,maxSketchSize=%d,initialPoints=%d:%08x,"
+        + "seed=%s,input=%s", numFolds, numIterations, samplesPerIteration, incremental,
+        minRelativeCostDrop, minCostPerSample, targetSketchSize, maxSketchSize,
+        initialPoints.size(), initialHash, seed == null ? "none" : seed, checkpointInput);
+  }
+  
+  /**
+   * Chooses the number of points to sample for each fold on the next iteration. With a target
+   * sketch size, the candidates that each fold still needs are spread over the remaining
+   * iterations in proportion to the share of the future cost that the current iteration is
+   * expected to account for, assuming that the cost keeps falling at the rate it fell on
+   * the last iteration: a fold whose cost is falling quickly spends more of its budget now,
+   * and a fold whose cost has leveled off spreads it evenly.
+   */
+  private int[] getSampleSizes(int samplesPerIteration, int iterationsLeft,
+      int[] pointsPerCluster, List<double[]> costHistory) {
+    int[] lValues = new int[pointsPerCluster.length];
+    for (int i = 0; i < lValues.length; i++) {
+      if (targetSketchSize > 0) {
+        int remaining = targetSketchSize - pointsPerCluster[i];
+        double share = 1.0 / iterationsLeft;
+        int numCosts = costHistory.size();
+        if (numCosts > 0 && costHistory.get(numCosts - 1)[i] == 0.0) {
+          share = 0.0;
+        } else if (numCosts > 1) {
+          double last = costHistory.get(numCosts - 1)[i];
+          double prev = costHistory.get(numCosts - 2)[i];
+          if (last < prev) {
+            double rho = last / prev;
+            share = (1.0 - rho) / (1.0 - Math.pow(rho, iterationsLeft));
+          }
+        }
+        lValues[i] = remaining > 0 ? (int) Math.ceil(remaining * share) : 0;
+      } else {
+        lValues[i] = samplesPerIteration;
+      }
+      if (maxSketchSize > 0) {
+        lValues[i] = Math.min(lValues[i], Math.max(0, maxSketchSize - pointsPerCluster[i]));
+      }
+    }
+    return lValues;
+  }
+  
+  private boolean converged(double[] currentCosts, double[] lastCosts, int[] lValues) {
+    if (minRelativeCostDrop <= 0.0 && minCostPerSample <= 0.0) {
+      return false;
+    }
+    for (int i = 0; i < currentCosts.length; i++) {
+      boolean done = currentCosts[i] == 0.0 || lValues[i] == 0 ||
+          currentCosts[i] / lValues[i] < minCostPerSample;
+      if (!done && lastCosts != null && lastCosts[i] > 0.0) {
+        done = (lastCosts[i] - currentCosts[i]) / lastCosts[i] < minRelativeCostDrop;
+      }
+      if (!done) {
+        return false;
+      }
     }
-    return getWeightedVectors(folds, centers);
+    return true;
   }
   
-  private <V extends Vector> List<List<Weighted<Vector>>> getWeightedVectors(
+  <V extends Vector> List<List<Weighted<Vector>>> getWeightedVectors(
       PCollection<Pair<Integer, V>> folds, CentersIndex centers) {
     List<List<Long>> indexWeights = getCountsOfClosest(folds, centers).getValue();
     return centers.getWeightedVectors(indexWeights); 
@@ -206,22 +815,38 @@ public class KMeansParallel {
   
   private <V extends Vector> void updateCenters(
       Iterable<Pair<Integer, V>> vecs,
-      CentersIndex centers) {
+      CentersIndex centers,
+      CentersIndex added) {
     for (Pair<Integer, V> p : vecs) {
-      centers.add(Vectors.toArray(p.second()), p.first());
+      double[] v = Vectors.toArray(p.second());
+      centers.add(v, p.first());
+      added.add(v, p.first());
     }
   }
   
   private static class ScoringFn<V extends Vector> extends DoFn<Pair<Integer, V>, Pair<Integer, Pair<V, Double>>> {
-    private CentersIndex centers;
+    private final Broadcast<CentersIndex> index;
+    private transient CentersIndex centers;
+    private transient Distances d;
     
     public ScoringFn(CentersIndex centers) {
-      this.centers = centers;
+      this.index = Broadcast.of(centers, CentersIndex.CODEC);
+    }
+    
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      this.centers = index.get(getConfiguration());
+      this.d = centers.newDistances();
     }
     
     @Override
     public void process(Pair<Integer, V> in, Emitter<Pair<Integer, Pair<V, Double>>> emitter) {
-      Distances d = centers.getDistances(in.second());
+      centers.getDistances(in.second(), in.first(), d);
       double dist = d.clusterDistances[in.first()];
       if (dist > 0.0) {
         emitter.emit(Pair.of(in.first(), Pair.of(in.second(), dist)));
@@ -229,31 +854,332 @@ public class KMeansParallel {
     }
   }
   
-  private static class ClosestCenterFn<V extends Vector> extends DoFn<Pair<Integer, V>, Pair<Integer, Integer>> {
-    private final CentersIndex centers;
+  /**
+   * Updates the score of each point that was computed on a previous iteration
+   * using only the candidates that have been added since then.
+   */
+  private static class RescoringFn<V extends Vector> extends
+      DoFn<Pair<Integer, Pair<V, Double>>, Pair<Integer, Pair<V, Double>>> {
+    private final Broadcast<CentersIndex> index;
+    private transient CentersIndex added;
+    private transient Distances d;
+    
+    public RescoringFn(CentersIndex added) {
+      this.index = Broadcast.of(added, CentersIndex.CODEC);
+    }
+    
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      this.added = index.get(getConfiguration());
+      this.d = added.newDistances();
+    }
+    
+    @Override
+    public void process(Pair<Integer, Pair<V, Double>> in,
+        Emitter<Pair<Integer, Pair<V, Double>>> emitter) {
+      Pair<V, Double> scored = in.second();
+      added.getDistances(scored.first(), in.first(), d);
+      double dist = d.clusterDistances[in.first()];
+      if (dist < scored.second()) {
+        if (dist > 0.0) {
+          emitter.emit(Pair.of(in.first(), Pair.of(scored.first(), dist)));
+        }
+      } else {
+        emitter.emit(in);
+      }
+    }
+  }
+  
+  private static class FoldCostFn<V extends Vector> extends
+      DoFn<Pair<Integer, Pair<V, Double>>, Pair<Integer, Double>> {
+    private final int numFolds;
+    private transient double[] currentCosts;
+    
+    public FoldCostFn(int numFolds) {
+      this.numFolds = numFolds;
+    }
+    
+    @Override
+    public void initialize() {
+      this.currentCosts = new double[numFolds];
+    }
+    
+    @Override
+    public void process(Pair<Integer, Pair<V, Double>> in, Emitter<Pair<Integer, Double>> emitter) {
+      currentCosts[in.first()] += in.second().second();
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Integer, Double>> emitter) {
+      for (int i = 0; i < currentCosts.length; i++) {
+        emitter.emit(Pair.of(i, currentCosts[i]));
+      }
+    }
+  }
+  
+  private static class ClosestCenterFn<V extends Vector> extends
+      DoFn<Pair<Integer, V>, Pair<Pair<Integer, Integer>, Long>> {
+    private final Broadcast<CentersIndex> index;
+    private transient CentersIndex centers;
+    private transient Distances d;
+    private transient long[][] counts;
     
     public ClosestCenterFn(CentersIndex centers) {
-      this.centers = centers;
+      this.index = Broadcast.of(centers, CentersIndex.CODEC);
     }
 
     @Override
-    public void process(Pair<Integer, V> in, Emitter<Pair<Integer, Integer>> emitter) {
-      Distances d = centers.getDistances(in.second());
-      emitter.emit(Pair.of(in.first(), d.closestPoints[in.first()]));
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      this.centers = index.get(getConfiguration());
+      this.d = centers.newDistances();
+      int[] pointsPerCluster = centers.getPointsPerCluster();
+      this.counts = new long[pointsPerCluster.length][];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = new long[pointsPerCluster[i]];
+      }
+    }
+    
+    @Override
+    public void process(Pair<Integer, V> in, Emitter<Pair<Pair<Integer, Integer>, Long>> emitter) {
+      int fold = in.first();
+      if (counts[fold].length == 0) {
+        // A fold that sampled no points has no center to count this point against
+        return;
+      }
+      centers.getDistances(in.second(), fold, d);
+      counts[fold][d.closestPoints[fold]]++;
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Pair<Integer, Integer>, Long>> emitter) {
+      for (int i = 0; i < counts.length; i++) {
+        for (int j = 0; j < counts[i].length; j++) {
+          if (counts[i][j] > 0) {
+            emitter.emit(Pair.of(Pair.of(i, j), counts[i][j]));
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Sums up the costs and the contingency matrices inside the task. The first element of
+   * each key that is emitted is the index of the pair of centers, and the second one is
+   * either one of the cost markers or the index of a cell of the matrix in row-major order.
+   */
+  private static class EvaluationFn<V extends Vector> extends
+      DoFn<V, Pair<Pair<Integer, Integer>, Double>> {
+    private static final int TEST_COST = -1;
+    private static final int TRAIN_COST = -2;
+    
+    private final Broadcast<CentersIndex> index;
+    private transient CentersIndex centers;
+    private transient Distances d;
+    private transient int numPairs;
+    private transient int[] trainSizes;
+    private transient double[] costs;
+    private transient double[][] counts;
+    
+    public EvaluationFn(CentersIndex centers) {
+      this.index = Broadcast.of(centers, CentersIndex.CODEC);
+    }
+
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      this.centers = index.get(getConfiguration());
+      this.d = centers.newDistances();
+      int[] pointsPerCluster = centers.getPointsPerCluster();
+      this.numPairs = pointsPerCluster.length / 2;
+      this.trainSizes = new int[numPairs];
+      this.costs = new double[pointsPerCluster.length];
+      this.counts = new double[numPairs][];
+      for (int i = 0; i < numPairs; i++) {
+        trainSizes[i] = pointsPerCluster[numPairs + i];
+        counts[i] = new double[pointsPerCluster[i] * trainSizes[i]];
+      }
+    }
+    
+    @Override
+    public void process(V vec, Emitter<Pair<Pair<Integer, Integer>, Double>> emitter) {
+      centers.getDistances(vec, d);
+      for (int i = 0; i < costs.length; i++) {
+        costs[i] += d.clusterDistances[i];
+      }
+      for (int i = 0; i < numPairs; i++) {
+        counts[i][d.closestPoints[i] * trainSizes[i] + d.closestPoints[numPairs + i]]++;
+      }
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Pair<Integer, Integer>, Double>> emitter) {
+      for (int i = 0; i < numPairs; i++) {
+        emitter.emit(Pair.of(Pair.of(i, TEST_COST), costs[i]));
+        emitter.emit(Pair.of(Pair.of(i, TRAIN_COST), costs[numPairs + i]));
+        for (int j = 0; j < counts[i].length; j++) {
+          if (counts[i][j] > 0) {
+            emitter.emit(Pair.of(Pair.of(i, j), counts[i][j]));
+          }
+        }
+      }
+    }
+  }
+  
+  private static class EvaluationPObject extends
+      PObjectImpl<Pair<Pair<Integer, Integer>, Double>, KMeansEvaluation> {
+    private final int[] pointsPerCluster;
+    
+    public EvaluationPObject(PCollection<Pair<Pair<Integer, Integer>, Double>> collect,
+        int[] pointsPerCluster) {
+      super(collect);
+      this.pointsPerCluster = pointsPerCluster;
+    }
+    
+    @Override
+    protected KMeansEvaluation process(Iterable<Pair<Pair<Integer, Integer>, Double>> input) {
+      int numPairs = pointsPerCluster.length / 2;
+      List<double[][]> assignments = Lists.newArrayListWithCapacity(numPairs);
+      Double[] testCosts = new Double[numPairs];
+      Double[] trainCosts = new Double[numPairs];
+      for (int i = 0; i < numPairs; i++) {
+        assignments.add(new double[pointsPerCluster[i]][pointsPerCluster[numPairs + i]]);
+        testCosts[i] = 0.0;
+        trainCosts[i] = 0.0;
+      }
+      for (Pair<Pair<Integer, Integer>, Double> p : input) {
+        int i = p.first().first();
+        int cell = p.first().second();
+        if (cell == EvaluationFn.TEST_COST) {
+          testCosts[i] = p.second();
+        } else if (cell == EvaluationFn.TRAIN_COST) {
+          trainCosts[i] = p.second();
+        } else {
+          int numTrain = pointsPerCluster[numPairs + i];
+          assignments.get(i)[cell / numTrain][cell % numTrain] = p.second();
+        }
+      }
+      return KMeansEvaluation.fromAssignments(assignments, Arrays.asList(testCosts),
+          Arrays.asList(trainCosts));
+    }
+  }
+  
+  /**
+   * Sums the points assigned to each center inside the task and emits one partial
+   * sum and count per center when the task is done.
+   */
+  private static class CentroidSumFn<V extends Vector> extends
+      DoFn<V, Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> {
+    private final Broadcast<CentersIndex> index;
+    private transient CentersIndex centers;
+    private transient Distances d;
+    private transient double[][][] sums;
+    private transient long[][] counts;
+    
+    public CentroidSumFn(CentersIndex centers) {
+      this.index = Broadcast.of(centers, CentersIndex.CODEC);
+    }
+
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      this.centers = index.get(getConfiguration());
+      this.d = centers.newDistances();
+      int[] pointsPerCluster = centers.getPointsPerCluster();
+      this.sums = new double[pointsPerCluster.length][][];
+      this.counts = new long[pointsPerCluster.length][];
+      for (int i = 0; i < counts.length; i++) {
+        sums[i] = new double[pointsPerCluster[i]][];
+        counts[i] = new long[pointsPerCluster[i]];
+      }
+    }
+    
+    @Override
+    public void process(V vec, Emitter<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> emitter) {
+      centers.getDistances(vec, d);
+      for (int i = 0; i < counts.length; i++) {
+        int closest = d.closestPoints[i];
+        double[] sum = sums[i][closest];
+        if (sum == null) {
+          sum = new double[vec.size()];
+          sums[i][closest] = sum;
+        }
+        Iterator<Vector.Element> iter = vec.iterateNonZero();
+        while (iter.hasNext()) {
+          Vector.Element e = iter.next();
+          sum[e.index()] += e.get();
+        }
+        counts[i][closest]++;
+      }
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> emitter) {
+      for (int i = 0; i < counts.length; i++) {
+        for (int j = 0; j < counts[i].length; j++) {
+          if (counts[i][j] > 0) {
+            emitter.emit(Pair.of(Pair.of(i, j), Pair.of(Vectors.of(sums[i][j]), counts[i][j])));
+          }
+        }
+      }
+    }
+  }
+  
+  private static class CentroidSumCombineFn extends CombineFn<Pair<Integer, Integer>, Pair<Vector, Long>> {
+    @Override
+    public void process(Pair<Pair<Integer, Integer>, Iterable<Pair<Vector, Long>>> input,
+        Emitter<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> emitter) {
+      Vector sum = null;
+      long count = 0L;
+      for (Pair<Vector, Long> p : input.second()) {
+        sum = sum == null ? p.first() : sum.plus(p.first());
+        count += p.second();
+      }
+      emitter.emit(Pair.of(input.first(), Pair.of(sum, count)));
     }
   }
   
   private static class AssignedCenterFn<V extends Vector> extends DoFn<V, Record> {
-    private final CentersIndex centers;
+    private final Broadcast<CentersIndex> index;
+    private transient CentersIndex centers;
+    private transient Distances d;
     
     public AssignedCenterFn(CentersIndex centers) {
-      this.centers = centers;
+      this.index = Broadcast.of(centers, CentersIndex.CODEC);
     }
 
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      this.centers = index.get(getConfiguration());
+      this.d = centers.newDistances();
+    }
+    
     @Override
     public void process(V vec, Emitter<Record> emitter) {
       MLVector mlvec = VectorConvert.fromVector(vec);
-      Distances d = centers.getDistances(vec);
+      centers.getDistances(vec, d);
       for (int i = 0; i < d.closestPoints.length; i++) {
         Record r = new SimpleRecord(ASSIGNMENT_SPEC);
         r.set("vector_id", mlvec.getId().toString())
@@ -266,23 +1192,162 @@ public class KMeansParallel {
 
   }
   
+  private static class ReplicateFn<V extends Vector> extends
+      DoFn<V, Pair<Integer, Pair<String, V>>> {
+    private final int numShards;
+    private final int partitionsPerShard;
+    private transient String taskId;
+    private transient long count;
+    
+    public ReplicateFn(int numShards, int partitionsPerShard) {
+      this.numShards = numShards;
+      this.partitionsPerShard = partitionsPerShard;
+    }
+    
+    @Override
+    public void initialize() {
+      // Unique across tasks and task attempts, since all of the copies of a vector are
+      // emitted by the same attempt
+      this.taskId = UUID.randomUUID().toString();
+      this.count = 0L;
+    }
+    
+    @Override
+    public void process(V vec, Emitter<Pair<Integer, Pair<String, V>>> emitter) {
+      Pair<String, V> p = Pair.of(taskId + ":" + count, vec);
+      int partition = (int) (count % partitionsPerShard);
+      count++;
+      for (int i = 0; i < numShards; i++) {
+        emitter.emit(Pair.of(i * partitionsPerShard + partition, p));
+      }
+    }
+  }
+  
+  private static class ShardAssignmentFn<V extends Vector> extends
+      DoFn<Pair<Integer, Iterable<Pair<String, V>>>,
+      Pair<Pair<String, Integer>, Pair<String, Pair<Integer, Double>>>> {
+    private final List<Broadcast<CentersIndex>> shards;
+    private final int[][] offsets;
+    private final int partitionsPerShard;
+    private transient int shardId;
+    private transient CentersIndex centers;
+    private transient Distances d;
+    
+    public ShardAssignmentFn(List<CentersIndex> shards, List<int[]> offsets,
+        int partitionsPerShard) {
+      this.shards = Lists.newArrayList();
+      for (CentersIndex shard : shards) {
+        this.shards.add(Broadcast.of(shard, CentersIndex.CODEC));
+      }
+      this.offsets = offsets.toArray(new int[offsets.size()][]);
+      this.partitionsPerShard = partitionsPerShard;
+    }
+    
+    @Override
+    public void configure(Configuration conf) {
+      for (Broadcast<CentersIndex> shard : shards) {
+        shard.configure(conf);
+      }
+    }
+    
+    @Override
+    public void initialize() {
+      this.shardId = -1;
+    }
+    
+    @Override
+    public void process(Pair<Integer, Iterable<Pair<String, V>>> input,
+        Emitter<Pair<Pair<String, Integer>, Pair<String, Pair<Integer, Double>>>> emitter) {
+      int shard = input.first() / partitionsPerShard;
+      if (shard != shardId) {
+        // The keys are sorted, so each shard is only loaded once by a task, and only one
+        // shard is kept in memory at a time
+        if (shardId >= 0) {
+          shards.get(shardId).release();
+        }
+        shardId = shard;
+        centers = shards.get(shard).get(getConfiguration());
+        d = centers.newDistances();
+      }
+      int[] offset = offsets[shard];
+      for (Pair<String, V> p : input.second()) {
+        String name = VectorConvert.fromVector(p.second()).getId().toString();
+        centers.getDistances(p.second(), d);
+        for (int i = 0; i < offset.length; i++) {
+          if (offset[i] >= 0) {
+            emitter.emit(Pair.of(Pair.of(p.first(), i), Pair.of(name,
+                Pair.of(offset[i] + d.closestPoints[i], d.clusterDistances[i]))));
+          }
+        }
+      }
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Pair<String, Integer>, Pair<String, Pair<Integer, Double>>>> emitter) {
+      if (shardId >= 0) {
+        shards.get(shardId).release();
+        centers = null;
+      }
+    }
+  }
+  
+  private static class ClosestCombineFn extends
+      CombineFn<Pair<String, Integer>, Pair<String, Pair<Integer, Double>>> {
+    @Override
+    public void process(
+        Pair<Pair<String, Integer>, Iterable<Pair<String, Pair<Integer, Double>>>> input,
+        Emitter<Pair<Pair<String, Integer>, Pair<String, Pair<Integer, Double>>>> emitter) {
+      Pair<String, Pair<Integer, Double>> closest = null;
+      for (Pair<String, Pair<Integer, Double>> p : input.second()) {
+        Pair<Integer, Double> c = p.second();
+        if (closest == null || c.second() < closest.second().second() ||
+            (c.second().equals(closest.second().second()) &&
+                c.first() < closest.second().first())) {
+          closest = p;
+        }
+      }
+      emitter.emit(Pair.of(input.first(), closest));
+    }
+  }
+  
+  private static class ShardedAssignmentFn extends
+      MapFn<Pair<Pair<String, Integer>, Pair<String, Pair<Integer, Double>>>, Record> {
+    @Override
+    public Record map(Pair<Pair<String, Integer>, Pair<String, Pair<Integer, Double>>> input) {
+      Record r = new SimpleRecord(ASSIGNMENT_SPEC);
+      r.set("vector_id", input.second().first())
+       .set("cluster_id", input.first().second())
+       .set("closest_center_id", input.second().second().first())
+       .set("distance", input.second().second().second());
+      return r;
+    }
+  }
+  
   private static class CenterCostFn<V extends Vector> extends DoFn<V, Pair<Integer, Double>> {
-    private final CentersIndex centers;
-    private double[] currentCosts;
+    private final Broadcast<CentersIndex> index;
+    private transient CentersIndex centers;
+    private transient double[] currentCosts;
+    private transient Distances d;
     
     public CenterCostFn(CentersIndex centers) {
-      this.centers = centers;
-      this.currentCosts = new double[centers.getNumCenters()];
+      this.index = Broadcast.of(centers, CentersIndex.CODEC);
+    }
+    
+    @Override
+    public void configure(Configuration conf) {
+      index.configure(conf);
     }
     
     @Override
     public void initialize() {
-      Arrays.fill(currentCosts, 0.0);
+      this.centers = index.get(getConfiguration());
+      this.currentCosts = new double[centers.getNumCenters()];
+      this.d = centers.newDistances();
     }
     
     @Override
     public void process(V vec, Emitter<Pair<Integer, Double>> emitter) {
-      Distances d = centers.getDistances(vec);
+      centers.getDistances(vec, d);
       for (int i = 0; i < currentCosts.length; i++) {
         currentCosts[i] += d.clusterDistances[i];
       }
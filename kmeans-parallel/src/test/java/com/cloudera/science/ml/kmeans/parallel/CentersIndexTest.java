@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.Vectors;
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.cloudera.science.ml.kmeans.parallel.CentersIndex.Distances;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class CentersIndexTest {
+  private static double THRESH = 0.001;
+
+  @Test
+  public void testDistances() throws Exception {
+    CentersIndex index = new CentersIndex(ImmutableList.of(
+        new Centers(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0)),
+        new Centers(Vectors.of(4.0, 3.0))));
+    Distances d = index.newDistances();
+    index.getDistances(Vectors.of(2.0, 1.0), d);
+    assertEquals(1.0, d.clusterDistances[0], THRESH);
+    assertEquals(0, d.closestPoints[0]);
+    assertEquals(8.0, d.clusterDistances[1], THRESH);
+    assertEquals(0, d.closestPoints[1]);
+
+    // The same buffers are reused for the next point
+    index.getDistances(Vectors.of(5.0, 5.0), d);
+    assertEquals(1.0, d.clusterDistances[0], THRESH);
+    assertEquals(1, d.closestPoints[0]);
+    assertEquals(5.0, d.clusterDistances[1], THRESH);
+  }
+
+  @Test
+  public void testDeduplication() throws Exception {
+    CentersIndex index = new CentersIndex(2);
+    index.add(new double[] { 1.0, 1.0 }, 0);
+    index.add(new double[] { 1.0, 1.0 }, 0);
+    index.add(new double[] { 1.0, 1.0 }, 1);
+    index.add(new double[] { 2.0, 1.0 }, 1);
+    assertEquals(2, index.getNumPoints());
+    assertEquals(1, index.getPointsPerCluster()[0]);
+    assertEquals(2, index.getPointsPerCluster()[1]);
+    Distances d = index.getDistances(Vectors.of(2.0, 1.0));
+    assertEquals(1.0, d.clusterDistances[0], THRESH);
+    assertEquals(0.0, d.clusterDistances[1], THRESH);
+    assertEquals(1, d.closestPoints[1]);
+  }
+
+  @Test
+  public void testSingleCenterDistances() throws Exception {
+    CentersIndex index = new CentersIndex(2);
+    index.add(new double[] { 4.0, 3.0 }, 1);
+    index.add(new double[] { 1.0, 1.0 }, 0);
+    index.add(new double[] { 2.0, 1.0 }, 1);
+    Distances d = index.newDistances();
+    d.clusterDistances[0] = -1.0;
+    index.getDistances(Vectors.of(2.0, 2.0), 1, d);
+    assertEquals(1.0, d.clusterDistances[1], THRESH);
+    assertEquals(1, d.closestPoints[1]);
+    assertEquals(-1.0, d.clusterDistances[0], THRESH);
+  }
+
+  @Test
+  public void testWeightedVectors() throws Exception {
+    CentersIndex index = new CentersIndex(2);
+    index.add(new double[] { 1.0, 1.0 }, 0, 1);
+    index.add(new double[] { 4.0, 3.0 }, 1);
+    List<List<Weighted<Vector>>> wv = index.getWeightedVectors(ImmutableList.<List<Long>>of(
+        ImmutableList.of(3L), ImmutableList.of(2L, 5L)));
+    assertEquals(ImmutableList.of(new Weighted<Vector>(Vectors.of(1.0, 1.0), 3L)), wv.get(0));
+    assertEquals(ImmutableList.of(new Weighted<Vector>(Vectors.of(1.0, 1.0), 2L),
+        new Weighted<Vector>(Vectors.of(4.0, 3.0), 5L)), wv.get(1));
+  }
+
+  @Test
+  public void testCodec() throws Exception {
+    CentersIndex index = new CentersIndex(2);
+    index.add(new double[] { 1.0, 1.0 }, 0, 1);
+    index.add(new double[] { 4.0, 3.0 }, 1);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    CentersIndex.CODEC.write(index, new DataOutputStream(baos));
+    CentersIndex copy = CentersIndex.CODEC.read(
+        new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    assertEquals(2, copy.getNumPoints());
+    assertEquals(1, copy.getPointsPerCluster()[0]);
+    assertEquals(2, copy.getPointsPerCluster()[1]);
+    Distances d = copy.newDistances();
+    copy.getDistances(Vectors.of(4.0, 2.0), 1, d);
+    assertEquals(1.0, d.clusterDistances[1], THRESH);
+    assertEquals(1, d.closestPoints[1]);
+    
+    // The copy can still be added to
+    copy.add(new double[] { 4.0, 3.0 }, 0);
+    assertEquals(2, copy.getNumPoints());
+    assertEquals(2, copy.getPointsPerCluster()[0]);
+  }
+  
+  @Test
+  public void testTreeMatchesScan() throws Exception {
+    Random rand = new Random(1729L);
+    List<Vector> many = Lists.newArrayList();
+    for (int i = 0; i < 300; i++) {
+      many.add(Vectors.of(rand.nextGaussian(), rand.nextGaussian()));
+    }
+    Centers big = new Centers(many);
+    Centers small = new Centers(many.get(0), many.get(1), many.get(2));
+    CentersIndex index = new CentersIndex(ImmutableList.of(big, small));
+    Distances d = index.newDistances();
+    Distances single = index.newDistances();
+    for (int n = 0; n < 300; n++) {
+      Vector p = Vectors.of(rand.nextGaussian(), rand.nextGaussian());
+      index.getDistances(p, d);
+      index.getDistances(p, 0, single);
+      assertEquals(big.indexOfClosest(p), d.closestPoints[0]);
+      assertEquals(big.getDistanceSquared(p), d.clusterDistances[0], THRESH);
+      assertEquals(d.closestPoints[0], single.closestPoints[0]);
+      assertEquals(small.indexOfClosest(p), d.closestPoints[1]);
+    }
+  }
+
+  @Test
+  public void testProbes() throws Exception {
+    Random rand = new Random(1729L);
+    List<Vector> many = Lists.newArrayList();
+    for (int i = 0; i < 400; i++) {
+      double[] v = new double[24];
+      for (int j = 0; j < v.length; j++) {
+        v[j] = rand.nextGaussian();
+      }
+      many.add(Vectors.of(v));
+    }
+    Centers big = new Centers(many);
+    CentersIndex index = new CentersIndex(ImmutableList.of(big));
+    index.setProbes(2);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    CentersIndex.CODEC.write(index, new DataOutputStream(baos));
+    CentersIndex copy = CentersIndex.CODEC.read(
+        new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    assertEquals(2, copy.getProbes());
+    
+    // Each center is in the closest cell to it, so it is always found
+    Distances d = copy.newDistances();
+    for (int i = 0; i < many.size(); i++) {
+      copy.getDistances(many.get(i), d);
+      assertEquals(big.indexOfClosest(many.get(i)), d.closestPoints[0]);
+      assertEquals(0.0, d.clusterDistances[0], THRESH);
+    }
+    
+    // The copy uses the cells that were built before the index was written
+    Distances expected = index.newDistances();
+    for (int n = 0; n < 100; n++) {
+      Vector p = many.get(n).plus(many.get(n + 1));
+      index.getDistances(p, expected);
+      copy.getDistances(p, d);
+      assertEquals(expected.closestPoints[0], d.closestPoints[0]);
+    }
+    
+    // No probes means exact distances again
+    copy.setProbes(0);
+    for (int n = 0; n < 100; n++) {
+      Vector p = many.get(n).plus(many.get(n + 1));
+      copy.getDistances(p, d);
+      assertEquals(big.indexOfClosest(p), d.closestPoints[0]);
+    }
+  }
+  
+  @Test
+  public void testExactDistancesFarFromOrigin() throws Exception {
+    CentersIndex index = new CentersIndex(ImmutableList.of(
+        new Centers(Vectors.of(1.0e8, 1.0e8), Vectors.of(1.0e8 + 4.0, 1.0e8))));
+    Distances d = index.newDistances();
+    index.getDistances(Vectors.of(1.0e8 + 0.5, 1.0e8), d);
+    assertEquals(0, d.closestPoints[0]);
+    assertEquals(0.25, d.clusterDistances[0], 0.0);
+    index.getDistances(Vectors.of(1.0e8 + 4.0, 1.0e8), 0, d);
+    assertEquals(1, d.closestPoints[0]);
+    assertEquals(0.0, d.clusterDistances[0], 0.0);
+  }
+}
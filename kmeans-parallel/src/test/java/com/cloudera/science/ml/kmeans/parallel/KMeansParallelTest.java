@@ -15,24 +15,39 @@
 package com.cloudera.science.ml.kmeans.parallel;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import org.apache.crunch.PCollection;
+import org.apache.crunch.Pair;
 import org.apache.crunch.impl.mem.MemPipeline;
+import org.apache.crunch.types.avro.Avros;
+import org.apache.mahout.math.NamedVector;
 import org.apache.mahout.math.Vector;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.cloudera.science.ml.core.records.Record;
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
 import com.cloudera.science.ml.kmeans.core.KMeans;
+import com.cloudera.science.ml.kmeans.core.KMeansEvaluation;
+import com.cloudera.science.ml.kmeans.core.StoppingCriteria;
 import com.cloudera.science.ml.parallel.crossfold.Crossfold;
 import com.cloudera.science.ml.parallel.types.MLAvros;
+import com.cloudera.science.ml.parallel.types.MLRecords;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 public class KMeansParallelTest {
   
@@ -79,4 +94,244 @@ public class KMeansParallelTest {
     List<Double> costs = kmp.getCosts(vecs, centers).getValue();
     assertEquals(ImmutableList.of(67.0, 6.0, 4.0), costs);
   }
+  
+  @Test
+  public void testEarlyStopping() throws Exception {
+    KMeansParallel stopping = KMeansParallel.builder().random(r).minRelativeCostDrop(0.01).build();
+    List<Vector> initialPoints = ImmutableList.of(Vectors.of(1.0, 1.0));
+    List<List<Double>> costs = Lists.newArrayList();
+    stopping.initialization(vecs, 10, 4, initialPoints, new Crossfold(2, 1729L), costs);
+    // Every distinct point is in the sketch well before the last iteration
+    assertTrue(costs.size() < 10);
+    assertEquals(ImmutableList.of(0.0, 0.0), costs.get(costs.size() - 1));
+  }
+  
+  @Test
+  public void testMaxSketchSize() throws Exception {
+    KMeansParallel capped = KMeansParallel.builder().random(r)
+        .targetSketchSize(3).maxSketchSize(2).build();
+    List<Vector> initialPoints = ImmutableList.of(Vectors.of(1.0, 1.0));
+    List<List<Weighted<Vector>>> points = capped.initialization(vecs, 5, 0, initialPoints,
+        new Crossfold(2, 1729L));
+    assertEquals(2, points.get(0).size());
+    assertEquals(2, points.get(1).size());
+  }
+  
+  @Test
+  public void testIncremental() throws Exception {
+    // Many more distinct points than end up in the sketch, so that the scores that are
+    // carried over from one iteration to the next decide which points are sampled
+    Random rand = new Random(1729L);
+    List<Vector> points = Lists.newArrayList();
+    for (int i = 0; i < 200; i++) {
+      points.add(Vectors.of(rand.nextGaussian() + 5.0 * (i % 4), rand.nextGaussian()));
+    }
+    PCollection<Vector> input = MemPipeline.typedCollectionOf(MLAvros.vector(), points);
+    List<Vector> initialPoints = ImmutableList.of(points.get(0));
+    List<List<Double>> fullCosts = Lists.newArrayList();
+    List<List<Weighted<Vector>>> full = KMeansParallel.builder().random(new Random(29L))
+        .build().initialization(input, 4, 3, initialPoints, new Crossfold(2, 1729L), fullCosts);
+    List<List<Double>> incrementalCosts = Lists.newArrayList();
+    List<List<Weighted<Vector>>> incremental = KMeansParallel.builder()
+        .random(new Random(29L)).incremental(true).build()
+        .initialization(input, 4, 3, initialPoints, new Crossfold(2, 1729L), incrementalCosts);
+    assertEquals(4, fullCosts.size());
+    assertTrue(full.get(0).size() + full.get(1).size() < points.size());
+    assertEquals(full, incremental);
+    for (int i = 0; i < fullCosts.size(); i++) {
+      for (int fold = 0; fold < 2; fold++) {
+        assertEquals(fullCosts.get(i).get(fold), incrementalCosts.get(i).get(fold), 1e-9);
+      }
+    }
+  }
+  
+  @Test
+  public void testFoldWithoutSamples() throws Exception {
+    // Fold 1 has input points but no sampled points to assign them to
+    CentersIndex centers = new CentersIndex(2);
+    centers.add(new double[] { 1.0, 1.0 }, 0);
+    centers.add(new double[] { 5.0, 4.0 }, 0);
+    PCollection<Pair<Integer, Vector>> folds = MemPipeline.typedCollectionOf(
+        Avros.pairs(Avros.ints(), MLAvros.vector()),
+        Pair.of(0, Vectors.of(2.0, 1.0)),
+        Pair.of(1, Vectors.of(2.0, 1.0)),
+        Pair.of(0, Vectors.of(1.0, 1.0)),
+        Pair.of(0, Vectors.of(5.0, 4.0)),
+        Pair.of(1, Vectors.of(5.0, 4.0)),
+        Pair.of(0, Vectors.of(4.0, 3.0)),
+        Pair.of(0, Vectors.of(0.0, 0.0)));
+    assertEquals(ImmutableList.of(ImmutableList.of(3L, 2L), ImmutableList.<Long>of()),
+        kmp.getCountsOfClosest(folds, centers).getValue());
+    List<List<Weighted<Vector>>> weighted = kmp.getWeightedVectors(folds, centers);
+    assertEquals(ImmutableList.of(
+        new Weighted<Vector>(Vectors.of(1.0, 1.0), 3L),
+        new Weighted<Vector>(Vectors.of(5.0, 4.0), 2L)), weighted.get(0));
+    assertTrue(weighted.get(1).isEmpty());
+  }
+  
+  @Test
+  public void testCacheInput() throws Exception {
+    List<Vector> sparse = Lists.newArrayList();
+    for (Vector v : vecs.materialize()) {
+      Vector s = Vectors.sparse(6);
+      s.setQuick(1, v.getQuick(0));
+      s.setQuick(4, v.getQuick(1));
+      sparse.add(s);
+    }
+    List<PCollection<Vector>> inputs = ImmutableList.of(vecs,
+        MemPipeline.typedCollectionOf(MLAvros.vector(), sparse));
+    for (PCollection<Vector> input : inputs) {
+      Vector first = input.materialize().iterator().next();
+      List<Vector> initialPoints = ImmutableList.of(first);
+      List<List<Weighted<Vector>>> uncached = KMeansParallel.builder().random(new Random(29L))
+          .build().initialization(input, 5, 4, initialPoints, new Crossfold(2, 1729L));
+      List<List<Weighted<Vector>>> cached = KMeansParallel.builder().random(new Random(29L))
+          .cacheInput(true).build()
+          .initialization(input, 5, 4, initialPoints, new Crossfold(2, 1729L));
+      assertEquals(uncached, cached);
+    }
+  }
+  
+  @Test
+  public void testCheckpoint() throws Exception {
+    File checkpoint = File.createTempFile("kmp", ".checkpoint");
+    checkpoint.delete();
+    checkpoint.deleteOnExit();
+    List<Vector> initialPoints = ImmutableList.of(Vectors.of(1.0, 1.0));
+    List<List<Double>> costs = Lists.newArrayList();
+    List<List<Weighted<Vector>>> points = KMeansParallel.builder().random(new Random(29L))
+        .build()
+        .initialization(vecs, 3, 4, initialPoints, new Crossfold(2, 1729L), costs);
+    
+    // Fail on the second iteration, after the checkpoint of the first one is written
+    List<List<Double>> failingCosts = new ArrayList<List<Double>>() {
+      @Override
+      public boolean add(List<Double> c) {
+        if (size() == 1) {
+          throw new IllegalStateException("Simulated failure");
+        }
+        return super.add(c);
+      }
+    };
+    try {
+      KMeansParallel.builder().random(new Random(29L)).checkpointFile(checkpoint, "vecs").build()
+          .initialization(vecs, 3, 4, initialPoints, new Crossfold(2, 1729L), failingCosts);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertTrue(checkpoint.exists());
+    
+    // A run with different parameters or input doesn't resume from the checkpoint
+    try {
+      KMeansParallel.builder().random(new Random(29L)).checkpointFile(checkpoint, "vecs").build()
+          .initialization(vecs, 3, 5, initialPoints, new Crossfold(2, 1729L));
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      KMeansParallel.builder().random(new Random(29L)).checkpointFile(checkpoint, "other").build()
+          .initialization(vecs, 3, 4, initialPoints, new Crossfold(2, 1729L));
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    
+    // The resumed run draws the same samples as an uninterrupted one, and deletes the checkpoint
+    List<List<Double>> resumedCosts = Lists.newArrayList();
+    List<List<Weighted<Vector>>> resumed = KMeansParallel.builder().random(new Random(29L))
+        .checkpointFile(checkpoint, "vecs").build()
+        .initialization(vecs, 3, 4, initialPoints, new Crossfold(2, 1729L), resumedCosts);
+    assertEquals(costs, resumedCosts);
+    assertEquals(points, resumed);
+    assertFalse(checkpoint.exists());
+  }
+  
+  @Test
+  public void testLloyds() throws Exception {
+    Centers init = new Centers(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0));
+    Centers centers = kmp.lloydsAlgorithm(vecs, init, StoppingCriteria.or(
+        StoppingCriteria.threshold(0.001), StoppingCriteria.maxIterations(10)));
+    assertEquals(new Centers(Vectors.of(1.5, 1.0), Vectors.of(4.5, 3.5)), centers);
+  }
+  
+  @Test
+  public void testEvaluate() throws Exception {
+    List<Centers> test = ImmutableList.of(
+        new Centers(Vectors.of(1.5, 1.0), Vectors.of(4.5, 3.5)),
+        new Centers(Vectors.of(3.0, 2.25)));
+    List<Centers> train = ImmutableList.of(
+        new Centers(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0)),
+        new Centers(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0)));
+    KMeansEvaluation eval = kmp.evaluate(vecs, test, train).getValue();
+    assertEquals(6.0, eval.getTestCenterCosts().get(0), 0.001);
+    assertEquals(12.0, eval.getTrainCosts().get(0), 0.001);
+    assertEquals(1.0, eval.getPredictionStrengths().get(0), 0.001);
+    assertEquals(1.0, eval.getStableClusters().get(0), 0.001);
+    assertEquals(1.0, eval.getStablePoints().get(0), 0.001);
+    // Half of the points in the single test cluster are in each of the train clusters
+    assertEquals(12.0, eval.getTrainCosts().get(1), 0.001);
+    assertEquals(0.0, eval.getStableClusters().get(1), 0.001);
+  }
+  
+  @Test
+  public void testShardedAssignments() throws Exception {
+    PCollection<Vector> named = MemPipeline.<Vector>typedCollectionOf(
+        MLAvros.vector(),
+        new NamedVector(Vectors.of(2.0, 1.0), "a"),
+        new NamedVector(Vectors.of(1.0, 1.0), "b"),
+        new NamedVector(Vectors.of(5.0, 4.0), "c"),
+        new NamedVector(Vectors.of(4.0, 3.0), "d"));
+    List<Centers> centers = ImmutableList.of(
+        new Centers(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0), Vectors.of(2.0, 1.5)),
+        new Centers(Vectors.of(4.0, 3.5)));
+    Map<String, Record> expected = toMap(kmp.computeClusterAssignments(named, centers,
+        MLRecords.record(KMeansParallel.ASSIGNMENT_SPEC)).materialize());
+    // Shards of two points each, so the first centers are split across two shards
+    Map<String, Record> sharded = toMap(kmp.computeClusterAssignments(named, centers,
+        MLRecords.record(KMeansParallel.ASSIGNMENT_SPEC), 0, 3).materialize());
+    assertEquals(8, expected.size());
+    assertEquals(expected.keySet(), sharded.keySet());
+    for (Map.Entry<String, Record> e : expected.entrySet()) {
+      Record r = sharded.get(e.getKey());
+      assertEquals(e.getValue().getInteger("closest_center_id"), r.getInteger("closest_center_id"));
+      assertEquals(e.getValue().getDouble("distance"), r.getDouble("distance"), 0.001);
+    }
+    assertEquals(2, (int) sharded.get("a,0").getInteger("closest_center_id"));
+    assertEquals(0.25, sharded.get("a,0").getDouble("distance"), 0.001);
+    assertEquals(1, (int) sharded.get("c,0").getInteger("closest_center_id"));
+  }
+  
+  @Test
+  public void testShardedAssignmentsOfUnnamedVectors() throws Exception {
+    // None of the vectors are named, so they all have the same (empty) id
+    List<Centers> centers = ImmutableList.of(
+        new Centers(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0), Vectors.of(2.0, 1.5)),
+        new Centers(Vectors.of(4.0, 3.5)));
+    List<String> expected = toSortedList(kmp.computeClusterAssignments(vecs, centers,
+        MLRecords.record(KMeansParallel.ASSIGNMENT_SPEC)).materialize());
+    List<String> sharded = toSortedList(kmp.computeClusterAssignments(vecs, centers,
+        MLRecords.record(KMeansParallel.ASSIGNMENT_SPEC), 0, 3, 2).materialize());
+    assertEquals(32, expected.size());
+    assertEquals(expected, sharded);
+  }
+  
+  private static List<String> toSortedList(Iterable<Record> records) {
+    List<String> ret = Lists.newArrayList();
+    for (Record r : records) {
+      ret.add(String.format("%s,%d,%d,%.3f", r.getString("vector_id"),
+          r.getInteger("cluster_id"), r.getInteger("closest_center_id"), r.getDouble("distance")));
+    }
+    Collections.sort(ret);
+    return ret;
+  }
+  
+  private static Map<String, Record> toMap(Iterable<Record> records) {
+    Map<String, Record> m = Maps.newHashMap();
+    for (Record r : records) {
+      m.put(r.getString("vector_id") + "," + r.getInteger("cluster_id"), r);
+    }
+    return m;
+  }
 }
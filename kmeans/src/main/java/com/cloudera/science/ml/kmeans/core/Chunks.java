@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+/**
+ * Splits a range of point indices into fixed-size chunks and runs a task on each of them,
+ * either on the calling thread or on an {@code ExecutorService}. The chunk boundaries do not
+ * depend on the number of threads and the results are always returned in chunk order, so
+ * merging them in that order gives the same answer no matter how many threads were used.
+ */
+class Chunks {
+
+  static final int CHUNK_SIZE = 4096;
+  
+  interface Task<T> {
+    T run(int start, int end);
+  }
+  
+  static <T> List<T> run(int numPoints, ExecutorService executor, final Task<T> task) {
+    List<T> results = Lists.newArrayList();
+    if (executor == null || numPoints <= CHUNK_SIZE) {
+      for (int start = 0; start < numPoints; start += CHUNK_SIZE) {
+        results.add(task.run(start, Math.min(numPoints, start + CHUNK_SIZE)));
+      }
+      return results;
+    }
+    List<Callable<T>> calls = Lists.newArrayList();
+    for (int start = 0; start < numPoints; start += CHUNK_SIZE) {
+      final int s = start;
+      final int e = Math.min(numPoints, start + CHUNK_SIZE);
+      calls.add(new Callable<T>() {
+        @Override
+        public T call() {
+          return task.run(s, e);
+        }
+      });
+    }
+    return invokeAll(calls, executor);
+  }
+  
+  /**
+   * Runs each of the given calls on the executor (or on the calling thread, if it is null)
+   * and returns their results in the same order as the calls.
+   */
+  static <T> List<T> invokeAll(List<Callable<T>> calls, ExecutorService executor) {
+    if (executor == null) {
+      List<T> results = Lists.newArrayList();
+      for (Callable<T> call : calls) {
+        try {
+          results.add(call.call());
+        } catch (Exception e) {
+          throw Throwables.propagate(e);
+        }
+      }
+      return results;
+    }
+    List<Future<T>> futures = Lists.newArrayList();
+    for (Callable<T> call : calls) {
+      futures.add(executor.submit(call));
+    }
+    List<T> results = Lists.newArrayList();
+    try {
+      for (Future<T> f : futures) {
+        results.add(f.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      for (Future<T> f : futures) {
+        f.cancel(true);
+      }
+    }
+    return results;
+  }
+  
+  private Chunks() {}
+}
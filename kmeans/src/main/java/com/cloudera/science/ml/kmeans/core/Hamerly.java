@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.Vectors;
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.collect.Lists;
+
+/**
+ * The state of a run of Hamerly's algorithm, which is used by {@link KMeansAlgorithm#HAMERLY}.
+ * The points and centers are copied into dense arrays when the run starts, and all of the
+ * bounds are Euclidean distances rather than squared distances so that the triangle
+ * inequality holds for them.
+ */
+class Hamerly {
+  private final int numPoints;
+  private final int dimension;
+  private final double[] points;
+  private final double[] weights;
+  private final List<Vector> originals;
+  private final ExecutorService executor;
+  
+  private int numCenters;
+  private double[] centers;
+  private int[] assignments;
+  private double[] upper;
+  private double[] lower;
+  
+  public <V extends Vector> Hamerly(Collection<Weighted<V>> weighted, Centers initial,
+      ExecutorService executor) {
+    this.numPoints = weighted.size();
+    this.dimension = initial.get(0).size();
+    this.points = new double[numPoints * dimension];
+    this.weights = new double[numPoints];
+    int i = 0;
+    for (Weighted<V> wv : weighted) {
+      System.arraycopy(Vectors.toArray(wv.thing()), 0, points, i * dimension, dimension);
+      weights[i] = wv.weight();
+      i++;
+    }
+    this.originals = Lists.newArrayList(initial);
+    this.executor = executor;
+    reset(initial);
+  }
+  
+  public Centers run(StoppingCriteria stoppingCriteria) {
+    Centers current = new Centers(originals), last = null;
+    int iteration = 0;
+    while (!stoppingCriteria.stop(iteration, current, last)) {
+      last = current;
+      current = update();
+      if (current.size() != numCenters) {
+        // Some of the new centers were identical and got merged, so the bounds
+        // no longer refer to the right centers.
+        reset(current);
+      }
+      iteration++;
+    }
+    return current;
+  }
+  
+  /**
+   * Assigns every point to the closest of the given centers, computing its bounds from scratch.
+   */
+  private void reset(Centers initial) {
+    this.numCenters = initial.size();
+    this.centers = new double[numCenters * dimension];
+    for (int j = 0; j < numCenters; j++) {
+      System.arraycopy(Vectors.toArray(initial.get(j)), 0, centers, j * dimension, dimension);
+    }
+    this.originals.clear();
+    this.originals.addAll(initial);
+    this.assignments = new int[numPoints];
+    this.upper = new double[numPoints];
+    this.lower = new double[numPoints];
+    Chunks.run(numPoints, executor, new Chunks.Task<Void>() {
+      @Override
+      public Void run(int start, int end) {
+        for (int i = start; i < end; i++) {
+          assignAll(i);
+        }
+        return null;
+      }
+    });
+  }
+  
+  private Centers update() {
+    // Half of the distance from each center to the closest other center
+    final double[] halfGap = new double[numCenters];
+    Arrays.fill(halfGap, Double.POSITIVE_INFINITY);
+    for (int j = 0; j < numCenters; j++) {
+      for (int k = j + 1; k < numCenters; k++) {
+        double d = 0.5 * Math.sqrt(distanceSquared(centers, j * dimension, centers, k));
+        halfGap[j] = Math.min(halfGap[j], d);
+        halfGap[k] = Math.min(halfGap[k], d);
+      }
+    }
+    
+    // Reassign the points whose bounds allow them to have changed clusters, and sum up
+    // the points in each cluster in the same chunks and order that KMeans.update does
+    List<double[]> partials = Chunks.run(numPoints, executor, new Chunks.Task<double[]>() {
+      @Override
+      public double[] run(int start, int end) {
+        double[] sums = new double[numCenters * (dimension + 1)];
+        for (int i = start; i < end; i++) {
+          double bound = Math.max(halfGap[assignments[i]], lower[i]);
+          if (upper[i] > bound) {
+            upper[i] = Math.sqrt(distanceSquared(points, i * dimension, centers, assignments[i]));
+            if (upper[i] > bound) {
+              assignAll(i);
+            }
+          }
+          int offset = assignments[i] * (dimension + 1);
+          for (int d = 0; d < dimension; d++) {
+            sums[offset + d] += points[i * dimension + d] * weights[i];
+          }
+          sums[offset + dimension] += weights[i];
+        }
+        return sums;
+      }
+    });
+    double[] sums = new double[numCenters * dimension];
+    double[] totals = new double[numCenters];
+    for (double[] partial : partials) {
+      for (int j = 0; j < numCenters; j++) {
+        for (int d = 0; d < dimension; d++) {
+          sums[j * dimension + d] += partial[j * (dimension + 1) + d];
+        }
+        totals[j] += partial[j * (dimension + 1) + dimension];
+      }
+    }
+    double[] movement = new double[numCenters];
+    List<Vector> next = Lists.newArrayListWithCapacity(numCenters);
+    for (int j = 0; j < numCenters; j++) {
+      if (totals[j] > 0) {
+        double[] centroid = new double[dimension];
+        for (int d = 0; d < dimension; d++) {
+          centroid[d] = sums[j * dimension + d] / totals[j];
+        }
+        movement[j] = Math.sqrt(distanceSquared(centroid, 0, centers, j));
+        System.arraycopy(centroid, 0, centers, j * dimension, dimension);
+        originals.set(j, Vectors.of(centroid));
+      }
+      next.add(originals.get(j));
+    }
+    
+    // Move the bounds by the largest amount that the relevant centers could have moved
+    int farthest = 0;
+    for (int j = 1; j < numCenters; j++) {
+      if (movement[j] > movement[farthest]) {
+        farthest = j;
+      }
+    }
+    double secondFarthest = 0.0;
+    for (int j = 0; j < numCenters; j++) {
+      if (j != farthest) {
+        secondFarthest = Math.max(secondFarthest, movement[j]);
+      }
+    }
+    for (int i = 0; i < numPoints; i++) {
+      upper[i] += movement[assignments[i]];
+      lower[i] -= (assignments[i] == farthest) ? secondFarthest : movement[farthest];
+    }
+    return new Centers(next);
+  }
+  
+  private void assignAll(int i) {
+    int offset = i * dimension;
+    double min = Double.POSITIVE_INFINITY, second = Double.POSITIVE_INFINITY;
+    int closest = -1;
+    for (int j = 0; j < numCenters; j++) {
+      double d = distanceSquared(points, offset, centers, j);
+      if (d < min) {
+        second = min;
+        min = d;
+        closest = j;
+      } else if (d < second) {
+        second = d;
+      }
+    }
+    assignments[i] = closest;
+    upper[i] = Math.sqrt(min);
+    lower[i] = Math.sqrt(second);
+  }
+  
+  private double distanceSquared(double[] values, int offset, double[] c, int center) {
+    int centerOffset = center * dimension;
+    double sum = 0.0;
+    for (int d = 0; d < dimension; d++) {
+      double diff = values[offset + d] - c[centerOffset + d];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+}
@@ -15,17 +15,19 @@
 package com.cloudera.science.ml.kmeans.core;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.mahout.math.Vector;
 
 import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 /**
  * An in-memory implementation of the k-means algorithm (also known as Lloyd's algorithm)
@@ -39,6 +41,9 @@ public class KMeans {
 
   private final KMeansInitStrategy initStrategy;
   private final StoppingCriteria stoppingCriteria;
+  private final KMeansAlgorithm algorithm;
+  private final int numThreads;
+  private final int batchSize;
   
   /**
    * Constructor that uses the k-means++ initialization strategy and
@@ -60,8 +65,66 @@ public class KMeans {
   public KMeans(
       KMeansInitStrategy initStrategy,
       StoppingCriteria stoppingCriteria) {
+    this(initStrategy, stoppingCriteria, KMeansAlgorithm.LLOYDS);
+  }
+  
+  /**
+   * Creates an in-memory k-means execution engine that uses the given algorithm to
+   * refine the initial centers.
+   * 
+   * @param initStrategy The initialization strategy for the k-means algorithm
+   * @param stoppingCriteria The stopping criteria to use for Lloyd's algorithm
+   * @param algorithm The algorithm to use for refining the initial centers
+   */
+  public KMeans(
+      KMeansInitStrategy initStrategy,
+      StoppingCriteria stoppingCriteria,
+      KMeansAlgorithm algorithm) {
+    this(initStrategy, stoppingCriteria, algorithm, 1);
+  }
+  
+  /**
+   * Creates an in-memory k-means execution engine that splits the points of each
+   * iteration across the given number of threads. The centers that are computed do
+   * not depend on the number of threads.
+   * 
+   * @param initStrategy The initialization strategy for the k-means algorithm
+   * @param stoppingCriteria The stopping criteria to use for Lloyd's algorithm
+   * @param algorithm The algorithm to use for refining the initial centers
+   * @param numThreads The number of threads to use for each iteration
+   */
+  public KMeans(
+      KMeansInitStrategy initStrategy,
+      StoppingCriteria stoppingCriteria,
+      KMeansAlgorithm algorithm,
+      int numThreads) {
+    this(initStrategy, stoppingCriteria, algorithm, numThreads,
+        KMeansAlgorithm.DEFAULT_BATCH_SIZE);
+  }
+  
+  /**
+   * Creates an in-memory k-means execution engine that samples the given number of points
+   * on each iteration when the algorithm is {@link KMeansAlgorithm#MINI_BATCH}.
+   * 
+   * @param initStrategy The initialization strategy for the k-means algorithm
+   * @param stoppingCriteria The stopping criteria to use for Lloyd's algorithm
+   * @param algorithm The algorithm to use for refining the initial centers
+   * @param numThreads The number of threads to use for each iteration
+   * @param batchSize The number of points to sample on each mini-batch iteration
+   */
+  public KMeans(
+      KMeansInitStrategy initStrategy,
+      StoppingCriteria stoppingCriteria,
+      KMeansAlgorithm algorithm,
+      int numThreads,
+      int batchSize) {
+    Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
     this.initStrategy = Preconditions.checkNotNull(initStrategy);
     this.stoppingCriteria = Preconditions.checkNotNull(stoppingCriteria);
+    this.algorithm = Preconditions.checkNotNull(algorithm);
+    this.numThreads = numThreads;
+    this.batchSize = batchSize;
   }
   
   /**
@@ -85,27 +148,83 @@ public class KMeans {
    */
   public <V extends Vector> Centers compute(List<Weighted<V>> points, int numClusters, Random random) {
     Preconditions.checkArgument(numClusters > 0);
-    Centers c = initStrategy.apply(points, numClusters, random);
-    return lloydsAlgorithm(points, c);
+    ExecutorService executor = newExecutor();
+    try {
+      Centers c = initStrategy.apply(points, numClusters, random, executor);
+      return algorithm.apply(points, c, stoppingCriteria, executor, random, batchSize);
+    } finally {
+      shutdown(executor);
+    }
   }
 
+  /**
+   * Runs k-means for each of the given numbers of clusters in turn, warm-starting each run
+   * from the converged centers of the run before it: those centers are extended with the
+   * k-means++ D<sup>2</sup>-sampling rule (see {@link KMeansInitStrategy#extend}) and then
+   * refined by the configured {@link KMeansAlgorithm}. The first run, and any run that asks
+   * for fewer clusters than the run before it ended up with, is initialized from scratch by
+   * the configured {@link KMeansInitStrategy}.
+   * 
+   * @param points The weighted points to cluster
+   * @param numClusters The numbers of clusters to create, ideally in increasing order
+   * @param random The random number generator to use
+   * @return The {@code Centers} created for each number of clusters, in the same order
+   */
+  public <V extends Vector> List<Centers> sweep(List<Weighted<V>> points,
+      List<Integer> numClusters, Random random) {
+    if (random == null) {
+      random = new Random();
+    }
+    List<Centers> sweep = Lists.newArrayList();
+    ExecutorService executor = newExecutor();
+    try {
+      Centers last = null;
+      for (Integer nc : numClusters) {
+        Preconditions.checkArgument(nc > 0);
+        Centers c;
+        if (last == null || nc < last.size()) {
+          c = initStrategy.apply(points, nc, random, executor);
+        } else {
+          c = KMeansInitStrategy.extend(points, last, nc, random, executor);
+        }
+        last = algorithm.apply(points, c, stoppingCriteria, executor, random, batchSize);
+        sweep.add(last);
+      }
+    } finally {
+      shutdown(executor);
+    }
+    return sweep;
+  }
+  
   /**
    * Apply Lloyd's algorithm to the given points and centers until the stopping
-   * criteria is met.
+   * criteria is met, using the configured {@link KMeansAlgorithm}.
    * 
    * @param points The weighted points
    * @param centers The initial centers
    * @return The centers that the algorithm converged toward
    */
   public <V extends Vector> Centers lloydsAlgorithm(Collection<Weighted<V>> points, Centers centers) {
-    Centers current = centers, last = null;
-    int iteration = 0;
-    while (!stoppingCriteria.stop(iteration, current, last)) {
-      last = current;
-      current = updateCenters(points, last);
-      iteration++;
+    return lloydsAlgorithm(points, centers, null);
+  }
+  
+  /**
+   * Apply Lloyd's algorithm to the given points and centers until the stopping
+   * criteria is met, using the configured {@link KMeansAlgorithm}.
+   * 
+   * @param points The weighted points
+   * @param centers The initial centers
+   * @param random The random number generator to use for sampling mini-batches
+   * @return The centers that the algorithm converged toward
+   */
+  public <V extends Vector> Centers lloydsAlgorithm(Collection<Weighted<V>> points, Centers centers,
+      Random random) {
+    ExecutorService executor = newExecutor();
+    try {
+      return algorithm.apply(points, centers, stoppingCriteria, executor, random, batchSize);
+    } finally {
+      shutdown(executor);
     }
-    return current;
   }
   
   /**
@@ -116,24 +235,105 @@ public class KMeans {
    * @return The new centers computed by the update
    */
   public <V extends Vector> Centers updateCenters(Collection<Weighted<V>> points, Centers centers) {
-    Map<Integer, List<Weighted<V>>> assignments = Maps.newHashMap();
-    for (int i = 0; i < centers.size(); i++) {
-      assignments.put(i, Lists.<Weighted<V>>newArrayList());
+    ExecutorService executor = newExecutor();
+    try {
+      return update(points, centers, executor);
+    } finally {
+      shutdown(executor);
     }
-    for (Weighted<V> weightedVec : points) {
-      assignments.get(centers.indexOfClosest(weightedVec.thing())).add(weightedVec);
+  }
+  
+  private ExecutorService newExecutor() {
+    return numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+  }
+  
+  private static void shutdown(ExecutorService executor) {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+  
+  /**
+   * Performs a single update cycle of Lloyd's algorithm, splitting the points into
+   * fixed-size chunks that are processed on the given executor (or on the calling thread,
+   * if it is null). Each chunk sums up the weighted points closest to each center in
+   * primitive arrays, and the sums of the chunks are merged in chunk order.
+   */
+  static <V extends Vector> Centers update(Collection<Weighted<V>> points, final Centers centers,
+      ExecutorService executor) {
+    final List<Weighted<V>> list = (points instanceof List) ? (List<Weighted<V>>) points
+        : Lists.newArrayList(points);
+    final int numCenters = centers.size();
+    final int dimension = centers.get(0).size();
+    for (Vector c : centers) {
+      // Mahout caches the squared length of a vector on first use, so compute it
+      // here instead of racing to do so on every thread
+      c.getLengthSquared();
+    }
+    List<double[][]> partials = Chunks.run(list.size(), executor, new Chunks.Task<double[][]>() {
+      @Override
+      public double[][] run(int start, int end) {
+        // The weighted sum of the points closest to each center, followed by their total weight
+        double[][] sums = new double[numCenters][];
+        List<Weighted<V>> chunk = list.subList(start, end);
+        int[] assignments = new int[chunk.size()];
+        centers.assign(Weighted.things(chunk), assignments, null);
+        for (int i = 0; i < chunk.size(); i++) {
+          Weighted<V> wv = chunk.get(i);
+          int closest = assignments[i];
+          if (sums[closest] == null) {
+            sums[closest] = new double[dimension + 1];
+          }
+          addTo(sums[closest], wv.thing(), wv.weight());
+          sums[closest][dimension] += wv.weight();
+        }
+        return sums;
+      }
+    });
+    
+    double[][] sums = new double[numCenters][];
+    for (double[][] partial : partials) {
+      for (int j = 0; j < numCenters; j++) {
+        if (partial[j] != null) {
+          if (sums[j] == null) {
+            sums[j] = partial[j];
+          } else {
+            for (int d = 0; d <= dimension; d++) {
+              sums[j][d] += partial[j][d];
+            }
+          }
+        }
+      }
     }
     List<Vector> centroids = Lists.newArrayList();
-    for (Map.Entry<Integer, List<Weighted<V>>> e : assignments.entrySet()) {
-      if (e.getValue().size() > 0) {
-        centroids.add(centroid(e.getValue()));
+    for (int j = 0; j < numCenters; j++) {
+      if (sums[j] != null && sums[j][dimension] > 0) {
+        double[] centroid = new double[dimension];
+        for (int d = 0; d < dimension; d++) {
+          centroid[d] = sums[j][d] / sums[j][dimension];
+        }
+        centroids.add(Vectors.of(centroid));
       } else {
-        centroids.add(centers.get(e.getKey())); // fix the no-op center
+        centroids.add(centers.get(j)); // fix the no-op center
       }
     }
     return new Centers(centroids);
   }
   
+  private static void addTo(double[] sum, Vector v, double weight) {
+    if (v.isDense()) {
+      for (int d = 0; d < sum.length - 1; d++) {
+        sum[d] += v.getQuick(d) * weight;
+      }
+    } else {
+      Iterator<Vector.Element> iter = v.iterateNonZero();
+      while (iter.hasNext()) {
+        Vector.Element e = iter.next();
+        sum[e.index()] += e.get() * weight;
+      }
+    }
+  }
+  
   /**
    * Compute the {@code Vector} that is the centroid of the given weighted points.
    * 
@@ -141,6 +341,10 @@ public class KMeans {
    * @return The centroid of the weighted points
    */
   public <V extends Vector> Vector centroid(Collection<Weighted<V>> points) {
+    return centroidOf(points);
+  }
+  
+  private static <V extends Vector> Vector centroidOf(Collection<Weighted<V>> points) {
     Vector center = null;
     long sz = 0;
     for (Weighted<V> v : points) {
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.Weighted;
+
+/**
+ * The algorithms that {@link KMeans} can use to refine a set of initial {@link Centers}
+ * until the {@code StoppingCriteria} is met.
+ */
+public enum KMeansAlgorithm {
+
+  /**
+   * The classic version of Lloyd's algorithm, which computes the distance from every point
+   * to every center on every iteration.
+   */
+  LLOYDS {
+    @Override
+    public <V extends Vector> Centers apply(Collection<Weighted<V>> points, Centers centers,
+        StoppingCriteria stoppingCriteria, ExecutorService executor) {
+      Centers current = centers, last = null;
+      int iteration = 0;
+      while (!stoppingCriteria.stop(iteration, current, last)) {
+        last = current;
+        current = KMeans.update(points, last, executor);
+        iteration++;
+      }
+      return current;
+    }
+  },
+  
+  /**
+   * The version of Lloyd's algorithm described in Hamerly (2010), "Making k-means even
+   * faster", which keeps an upper bound on the distance from each point to its assigned
+   * center and a lower bound on its distance to every other center, and uses them along
+   * with the distances between the centers to skip most of the distance computations
+   * once the centers stop moving very much. It produces the same centers as
+   * {@link #LLOYDS}, up to ties in the distances.
+   */
+  HAMERLY {
+    @Override
+    public <V extends Vector> Centers apply(Collection<Weighted<V>> points, Centers centers,
+        StoppingCriteria stoppingCriteria, ExecutorService executor) {
+      return new Hamerly(points, centers, executor).run(stoppingCriteria);
+    }
+  },
+  
+  /**
+   * The mini-batch version of k-means described in Sculley (2010), "Web-scale k-means
+   * clustering", which moves the centers toward a small batch of points sampled in
+   * proportion to their weights on each iteration, using a per-center learning rate that
+   * decays as more points are assigned to the center. Each iteration is much cheaper than
+   * an iteration of {@link #LLOYDS} on a large sketch, at the cost of a somewhat higher
+   * final cost.
+   */
+  MINI_BATCH {
+    @Override
+    public <V extends Vector> Centers apply(Collection<Weighted<V>> points, Centers centers,
+        StoppingCriteria stoppingCriteria, ExecutorService executor) {
+      return apply(points, centers, stoppingCriteria, executor, null, DEFAULT_BATCH_SIZE);
+    }
+    
+    @Override
+    <V extends Vector> Centers apply(Collection<Weighted<V>> points, Centers centers,
+        StoppingCriteria stoppingCriteria, ExecutorService executor, Random random,
+        int batchSize) {
+      return new MiniBatch(points, batchSize, random, executor).run(centers, stoppingCriteria);
+    }
+  };
+  
+  /**
+   * The number of points that {@link #MINI_BATCH} samples on each iteration by default.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  
+  /**
+   * Refine the given {@code Centers} on the given points until the stopping criteria is met.
+   * 
+   * @param points The weighted points
+   * @param centers The initial centers
+   * @param stoppingCriteria The rule for ending the iterations
+   * @param executor The executor to split the points of each iteration across, or null
+   * to process all of them on the calling thread
+   * @return The centers that the algorithm converged toward
+   */
+  public abstract <V extends Vector> Centers apply(Collection<Weighted<V>> points,
+      Centers centers, StoppingCriteria stoppingCriteria, ExecutorService executor);
+  
+  /**
+   * Same as {@link #apply(Collection, Centers, StoppingCriteria, ExecutorService)}, with the
+   * source of randomness and the number of points per iteration used by {@link #MINI_BATCH}.
+   * The other algorithms do not use them.
+   */
+  <V extends Vector> Centers apply(Collection<Weighted<V>> points, Centers centers,
+      StoppingCriteria stoppingCriteria, ExecutorService executor, Random random,
+      int batchSize) {
+    return apply(points, centers, stoppingCriteria, executor);
+  }
+}
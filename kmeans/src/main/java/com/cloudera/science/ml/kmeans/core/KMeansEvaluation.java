@@ -15,11 +15,13 @@
 package com.cloudera.science.ml.kmeans.core;
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.mahout.math.Vector;
 
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 /**
@@ -29,21 +31,63 @@ import com.google.common.collect.Lists;
  */
 public class KMeansEvaluation {
 
-  private final List<Centers> testCenters;
-  private final List<Weighted<Vector>> testPoints;
-  private final List<Centers> trainCenters;
-  private List<Double> predictionStrengths;
-  private List<Double> trainCosts;
-  private List<Double> testCosts;
-  private List<Double> stablePoints;
-  private List<Double> stableClusters;
+  private final List<Double> predictionStrengths = Lists.newArrayList();
+  private final List<Double> trainCosts = Lists.newArrayList();
+  private final List<Double> testCosts = Lists.newArrayList();
+  private final List<Double> stablePoints = Lists.newArrayList();
+  private final List<Double> stableClusters = Lists.newArrayList();
   
   public KMeansEvaluation(List<Centers> testCenters, List<Weighted<Vector>> testPoints,
       List<Centers> trainCenters) {
-    this.testCenters = testCenters;
-    this.testPoints = testPoints;
-    this.trainCenters = trainCenters;
-    init();
+    this(testCenters, testPoints, trainCenters, null);
+  }
+  
+  /**
+   * Evaluates the given centers, splitting the work for each pair of test and train
+   * centers into chunks of the test points that are run on the given executor.
+   * 
+   * @param testCenters The centers created from the test points
+   * @param testPoints The test points
+   * @param trainCenters The centers created from the training points
+   * @param executor The executor to use, or null to run on the calling thread
+   */
+  public KMeansEvaluation(List<Centers> testCenters, List<Weighted<Vector>> testPoints,
+      List<Centers> trainCenters, ExecutorService executor) {
+    init(testCenters, testPoints, trainCenters, executor);
+  }
+  
+  /**
+   * Derives the evaluation metrics from the costs and the test-by-train contingency matrices
+   * of each pair of test and train centers, which were computed over a set of points somewhere
+   * else, such as a distributed job over the full dataset.
+   * 
+   * @param assignments For each pair of centers, the total weight of the points that were
+   * closest to each combination of a test center (the row) and a train center (the column)
+   * @param testCosts The cost of the points relative to each of the test centers
+   * @param trainCosts The cost of the points relative to each of the train centers
+   * @return The evaluation of each pair of centers
+   */
+  public static KMeansEvaluation fromAssignments(List<double[][]> assignments,
+      List<Double> testCosts, List<Double> trainCosts) {
+    Preconditions.checkArgument(assignments.size() == testCosts.size() &&
+        assignments.size() == trainCosts.size(), "Mismatched number of centers");
+    KMeansEvaluation eval = new KMeansEvaluation();
+    for (int i = 0; i < assignments.size(); i++) {
+      double[][] a = assignments.get(i);
+      Partial p = new Partial(a);
+      p.testCost = testCosts.get(i);
+      p.trainCost = trainCosts.get(i);
+      for (double[] row : a) {
+        for (double wt : row) {
+          p.totalPoints += wt;
+        }
+      }
+      eval.addMetrics(p);
+    }
+    return eval;
+  }
+  
+  private KMeansEvaluation() {
   }
   
   public List<Double> getPredictionStrengths() {
@@ -66,55 +110,117 @@ public class KMeansEvaluation {
     return stablePoints;
   }
   
-  private void init() {
-    predictionStrengths = Lists.newArrayListWithExpectedSize(testCenters.size());
-    trainCosts = Lists.newArrayListWithExpectedSize(testCenters.size());
-    testCosts = Lists.newArrayListWithExpectedSize(testCenters.size());
-    stableClusters = Lists.newArrayListWithExpectedSize(testCenters.size());
-    stablePoints = Lists.newArrayListWithExpectedSize(testCenters.size());
-    
+  private void init(List<Centers> testCenters, final List<Weighted<Vector>> testPoints,
+      List<Centers> trainCenters, ExecutorService executor) {
     for (int i = 0; i < testCenters.size(); i++) {
-      Centers test = testCenters.get(i);
-      Centers train = trainCenters.get(i);
-      double trainCost = 0.0, testCost = 0.0;
-      double[][] assignments = new double[test.size()][train.size()];
-      int totalPoints = 0;
-      for (Weighted<Vector> wv : testPoints) {
-        double wt = wv.weight();
-        totalPoints += wt;
-        Vector v = wv.thing();
-        int testId = test.indexOfClosest(v);
-        testCost += wt * v.getDistanceSquared(test.get(testId));
-        int trainId = train.indexOfClosest(wv.thing());
-        trainCost += wt * v.getDistanceSquared(train.get(trainId));
-        assignments[testId][trainId] += wt;
-      }
-      trainCosts.add(trainCost);
-      testCosts.add(testCost);
-      
-      double minScore = Double.POSITIVE_INFINITY;
-      double points = 0;
-      double clusters = 0;
-      for (double[] assignment : assignments) {
-        double total = 0.0;
-        double same = 0.0;
-        for (double a : assignment) {
-          total += a;
-          same += a * (a - 1);
-        }
-        double score = same / (total * (total - 1));
-        // Only consider clusters that contain a non-trivial number of obs
-        if (total > assignment.length && score < minScore) {
-          minScore = score;
+      final Centers test = testCenters.get(i);
+      final Centers train = trainCenters.get(i);
+      // The chunks only return the assignments of their points, which are merged into
+      // a single contingency matrix for each pair of centers in the order of the points
+      List<Chunk> chunks = Chunks.run(testPoints.size(), executor, new Chunks.Task<Chunk>() {
+        @Override
+        public Chunk run(int start, int end) {
+          return evaluate(testPoints, test, train, start, end);
         }
-        if (score > 0.8) { // stability threshold
-          clusters++;
-          points += total;
+      });
+      Partial merged = new Partial(test.size(), train.size());
+      int next = 0;
+      for (Chunk chunk : chunks) {
+        merged.testCost += chunk.testCost;
+        merged.trainCost += chunk.trainCost;
+        for (int j = 0; j < chunk.testIds.length; j++) {
+          double wt = testPoints.get(next++).weight();
+          merged.totalPoints += wt;
+          merged.assignments[chunk.testIds[j]][chunk.trainIds[j]] += wt;
         }
       }
-      predictionStrengths.add(minScore);
-      stableClusters.add(clusters / assignments.length);
-      stablePoints.add(points / totalPoints);
+      addMetrics(merged);
+    }
+  }
+  
+  /**
+   * Assigns each of the test points in the given range to its closest test and train
+   * centers, computing the distance to each of them just once.
+   */
+  private static Chunk evaluate(List<Weighted<Vector>> testPoints, Centers test, Centers train,
+      int start, int end) {
+    List<Weighted<Vector>> points = testPoints.subList(start, end);
+    List<Vector> vecs = Weighted.things(points);
+    Chunk chunk = new Chunk(points.size());
+    double[] testDistances = new double[points.size()];
+    double[] trainDistances = new double[points.size()];
+    test.assign(vecs, chunk.testIds, testDistances);
+    train.assign(vecs, chunk.trainIds, trainDistances);
+    for (int i = 0; i < points.size(); i++) {
+      double wt = points.get(i).weight();
+      chunk.testCost += wt * testDistances[i];
+      chunk.trainCost += wt * trainDistances[i];
+    }
+    return chunk;
+  }
+  
+  private void addMetrics(Partial p) {
+    trainCosts.add(p.trainCost);
+    testCosts.add(p.testCost);
+    double[][] assignments = p.assignments;
+    
+    double minScore = Double.POSITIVE_INFINITY;
+    double points = 0;
+    double clusters = 0;
+    for (double[] assignment : assignments) {
+      double total = 0.0;
+      double same = 0.0;
+      for (double a : assignment) {
+        total += a;
+        same += a * (a - 1);
+      }
+      double score = same / (total * (total - 1));
+      // Only consider clusters that contain a non-trivial number of obs
+      if (total > assignment.length && score < minScore) {
+        minScore = score;
+      }
+      if (score > 0.8) { // stability threshold
+        clusters++;
+        points += total;
+      }
+    }
+    predictionStrengths.add(minScore);
+    stableClusters.add(clusters / assignments.length);
+    stablePoints.add(points / p.totalPoints);
+  }
+  
+  /**
+   * The costs and the closest test and train centers of a chunk of the test points.
+   */
+  private static class Chunk {
+    private final int[] testIds;
+    private final int[] trainIds;
+    private double testCost;
+    private double trainCost;
+    
+    Chunk(int size) {
+      this.testIds = new int[size];
+      this.trainIds = new int[size];
+    }
+  }
+  
+  /**
+   * The costs and the test-by-train contingency matrix of a pair of centers.
+   */
+  private static class Partial {
+    private final double[][] assignments;
+    private double testCost;
+    private double trainCost;
+    // Accumulated with a narrowing compound assignment, which drops the fractional part
+    // of each weight
+    private int totalPoints;
+    
+    Partial(int numTest, int numTrain) {
+      this(new double[numTest][numTrain]);
+    }
+    
+    Partial(double[][] assignments) {
+      this.assignments = assignments;
     }
   }
 }
@@ -18,11 +18,14 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.mahout.math.Vector;
 
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 /**
@@ -71,29 +74,148 @@ public enum KMeansInitStrategy {
   PLUS_PLUS {
     @Override
     public <V extends Vector> Centers apply(List<Weighted<V>> points, int numClusters, Random random) {
+      return apply(points, numClusters, random, null);
+    }
+    
+    @Override
+    public <V extends Vector> Centers apply(List<Weighted<V>> points, int numClusters,
+        Random random, ExecutorService executor) {
       if (random == null) {
         random = new Random();
       }
-      Centers centers = RANDOM.apply(points, 1, random);
-      double[] cumulativeScores = new double[points.size() + 1];
-      for (int i = 1; i < numClusters; i++) {
-        cumulativeScores[0] = 0;
-        for (int j = 0; j < points.size(); j++) {
-          Weighted<V> wv = points.get(j);
-          double score = centers.getDistanceSquared(wv.thing()) * wv.weight();
-          cumulativeScores[j + 1] = cumulativeScores[j] + score;
+      Vector first = RANDOM.apply(points, 1, random).get(0);
+      return extend(points, new Centers(first), numClusters, random, executor);
+    }
+  },
+  
+  /**
+   * Uses the assumption-free Markov chain Monte Carlo approximation to k-means++ (AFK-MC<sup>2</sup>)
+   * described in Bachem et al. (2016), "Fast and Provably Good Seedings for k-Means". After the
+   * first center is chosen, a proposal distribution that mixes the k-means++ scores relative to
+   * that center with the weights of the points is computed in a single pass, and every other
+   * center is chosen by running a Metropolis-Hastings chain of {@value #CHAIN_LENGTH} steps on
+   * it, so that choosing a center does not require a pass over all of the points.
+   */
+  AFK_MC2 {
+    @Override
+    public <V extends Vector> Centers apply(List<Weighted<V>> points, int numClusters, Random random) {
+      if (random == null) {
+        random = new Random();
+      }
+      Vector first = RANDOM.apply(points, 1, random).get(0);
+      List<Vector> chosen = Lists.newArrayList();
+      chosen.add(first);
+      Set<Vector> chosenSet = Sets.newHashSet(chosen);
+      
+      double totalWeight = 0.0, totalScore = 0.0;
+      double[] scores = new double[points.size()];
+      for (int j = 0; j < points.size(); j++) {
+        Weighted<V> wv = points.get(j);
+        scores[j] = first.getDistanceSquared(wv.thing()) * wv.weight();
+        totalWeight += wv.weight();
+        totalScore += scores[j];
+      }
+      double[] proposal = new double[points.size()];
+      double[] cumulativeProposal = new double[points.size() + 1];
+      for (int j = 0; j < points.size(); j++) {
+        proposal[j] = 0.5 * points.get(j).weight() / totalWeight;
+        if (totalScore > 0.0) {
+          proposal[j] += 0.5 * scores[j] / totalScore;
         }
-        double r = cumulativeScores[points.size()] * random.nextDouble();
-        int next = Arrays.binarySearch(cumulativeScores, r);
-        int index = (next > 0) ? next - 1 : -2 - next;
-        while (index > 0 && centers.contains(points.get(index).thing())) {
-          index--;
+        cumulativeProposal[j + 1] = cumulativeProposal[j] + proposal[j];
+      }
+      
+      while (chosen.size() < numClusters) {
+        // Rerun the chain if it ends on a point that was already chosen, and fall back to the
+        // farthest point if it keeps doing so
+        Vector added = null;
+        for (int attempt = 0; added == null && attempt < MAX_CHAINS; attempt++) {
+          Vector v = points.get(chain(points, proposal, cumulativeProposal, chosen, random))
+              .thing();
+          if (chosenSet.add(v)) {
+            added = v;
+          }
+        }
+        if (added == null) {
+          added = farthest(points, chosenSet);
+          if (added == null) {
+            // Every distinct point with a positive weight has been chosen
+            break;
+          }
+          chosenSet.add(added);
+        }
+        chosen.add(added);
+      }
+      return new Centers(chosen);
+    }
+    
+    private <V extends Vector> int chain(List<Weighted<V>> points, double[] proposal,
+        double[] cumulativeProposal, List<Vector> chosen, Random random) {
+      int x = sample(cumulativeProposal, random);
+      double xScore = score(points.get(x), chosen);
+      for (int step = 1; step < CHAIN_LENGTH; step++) {
+        int y = sample(cumulativeProposal, random);
+        double yScore = score(points.get(y), chosen);
+        if (xScore * proposal[y] == 0.0 ||
+            yScore * proposal[x] / (xScore * proposal[y]) > random.nextDouble()) {
+          x = y;
+          xScore = yScore;
         }
-        centers = centers.extendWith(points.get(index).thing());
       }
-      return centers;
+      return x;
+    }
+    
+    /**
+     * Returns the point with the highest score that has not been chosen yet, or null if
+     * every point with a positive weight has been chosen.
+     */
+    private <V extends Vector> Vector farthest(List<Weighted<V>> points, Set<Vector> chosen) {
+      Centers centers = new Centers(chosen);
+      Vector best = null;
+      double bestScore = -1.0;
+      for (Weighted<V> wv : points) {
+        if (wv.weight() > 0.0) {
+          double score = centers.getDistanceSquared(wv.thing()) * wv.weight();
+          if (score > bestScore && !chosen.contains(wv.thing())) {
+            best = wv.thing();
+            bestScore = score;
+          }
+        }
+      }
+      return best;
+    }
+    
+    private int sample(double[] cumulative, Random random) {
+      double r = cumulative[cumulative.length - 1] * random.nextDouble();
+      int next = Arrays.binarySearch(cumulative, r);
+      int index = (next >= 0) ? Math.max(0, next - 1) : -2 - next;
+      // Skip over any points with a proposal probability of zero
+      while (index > 0 && cumulative[index + 1] == cumulative[index]) {
+        index--;
+      }
+      return index;
+    }
+    
+    private <V extends Vector> double score(Weighted<V> point, List<Vector> chosen) {
+      double min = Double.POSITIVE_INFINITY;
+      for (Vector c : chosen) {
+        min = Math.min(min, c.getDistanceSquared(point.thing()));
+      }
+      return min * point.weight();
     }
   };
+  
+  /**
+   * The number of steps of the Markov chain that {@link #AFK_MC2} runs to choose each center.
+   */
+  public static final int CHAIN_LENGTH = 200;
+  
+  /**
+   * The number of chains that {@link #AFK_MC2} runs to choose a center before it falls back
+   * to a pass over all of the points, which only happens when the chains keep ending on points
+   * that were already chosen.
+   */
+  public static final int MAX_CHAINS = 3;
 
   /**
    * Use this instance to create the initial {@code Centers} from the given parameters.
@@ -104,4 +226,101 @@ public enum KMeansInitStrategy {
    * @return A new {@code Centers} instance created using this instance
    */
   public abstract <V extends Vector> Centers apply(List<Weighted<V>> points, int numClusters, Random random);
+  
+  /**
+   * Same as the other {@code apply} method, but strategies that need to make passes over
+   * the points may split them across the threads of the given executor. The {@code Centers}
+   * that are created do not depend on whether or not an executor is used.
+   * 
+   * @param points The candidate {@code WeightedVec} instances for the cluster
+   * @param numClusters The number of points in the center (i.e., the "k" in "k-means")
+   * @param random The {@code Random} to use
+   * @param executor The executor to use, or null to run on the calling thread
+   * @return A new {@code Centers} instance created using this instance
+   */
+  public <V extends Vector> Centers apply(List<Weighted<V>> points, int numClusters, Random random,
+      ExecutorService executor) {
+    return apply(points, numClusters, random);
+  }
+  
+  /**
+   * Extends the given {@code Centers} up to the given number of clusters by choosing each
+   * new center with the k-means++ D<sup>2</sup>-sampling rule relative to all of the centers
+   * chosen so far, which is how {@link #PLUS_PLUS} chooses every center after the first one.
+   * 
+   * <p>The squared distance from each point to the closest center chosen so far is kept
+   * from one round to the next, so that each round only has to compare the points to the
+   * center that was just added, and the new {@code Centers} are only built once, at the
+   * end. With an executor, that comparison and the cumulative sum of the scores are split
+   * across threads. The cumulative sum is computed per chunk and then offset by the totals of
+   * the chunks before it, and the chunks do not depend on the number of threads, so the chosen
+   * centers are the same either way.
+   * 
+   * @param points The candidate {@code WeightedVec} instances for the cluster
+   * @param centers The centers to extend
+   * @param numClusters The number of centers to extend them to
+   * @param random The {@code Random} to use
+   * @param executor The executor to use, or null to run on the calling thread
+   * @return A new {@code Centers} instance that starts with the given centers
+   */
+  public static <V extends Vector> Centers extend(final List<Weighted<V>> points,
+      Centers centers, int numClusters, Random random, ExecutorService executor) {
+    if (random == null) {
+      random = new Random();
+    }
+    List<Vector> chosen = Lists.<Vector>newArrayList(centers);
+    Set<Vector> chosenSet = Sets.newHashSet(centers);
+    final double[] minDistances = new double[points.size()];
+    Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+    final double[] cumulativeScores = new double[points.size() + 1];
+    List<Vector> added = centers;
+    for (int i = centers.size(); i < numClusters; i++) {
+      final Centers newCenters = new Centers(added);
+      // The cumulative scores are a two-pass prefix sum over the fixed chunks: each chunk
+      // sums its own scores from zero, and then the totals of the chunks before it are added
+      List<Double> totals = Chunks.run(points.size(), executor, new Chunks.Task<Double>() {
+        @Override
+        public Double run(int start, int end) {
+          int[] closest = new int[end - start];
+          double[] distances = new double[end - start];
+          newCenters.assign(Weighted.things(points.subList(start, end)), closest, distances);
+          double sum = 0.0;
+          for (int j = start; j < end; j++) {
+            minDistances[j] = Math.min(minDistances[j], distances[j - start]);
+            sum += minDistances[j] * points.get(j).weight();
+            cumulativeScores[j + 1] = sum;
+          }
+          return sum;
+        }
+      });
+      final double[] offsets = new double[totals.size()];
+      for (int c = 1; c < offsets.length; c++) {
+        offsets[c] = offsets[c - 1] + totals.get(c - 1);
+      }
+      Chunks.run(points.size(), executor, new Chunks.Task<Void>() {
+        @Override
+        public Void run(int start, int end) {
+          double offset = offsets[start / Chunks.CHUNK_SIZE];
+          if (offset != 0.0) {
+            for (int j = start; j < end; j++) {
+              cumulativeScores[j + 1] += offset;
+            }
+          }
+          return null;
+        }
+      });
+      double r = cumulativeScores[points.size()] * random.nextDouble();
+      int next = Arrays.binarySearch(cumulativeScores, r);
+      int index = (next > 0) ? next - 1 : -2 - next;
+      while (index > 0 && chosenSet.contains(points.get(index).thing())) {
+        index--;
+      }
+      Vector point = points.get(index).thing();
+      added = ImmutableList.of(point);
+      if (chosenSet.add(point)) {
+        chosen.add(point);
+      }
+    }
+    return chosen.size() == centers.size() ? centers : new Centers(chosen);
+  }
 }
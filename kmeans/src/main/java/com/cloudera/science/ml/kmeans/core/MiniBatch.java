@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.Vectors;
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * The state of a run of the mini-batch k-means algorithm described in Sculley (2010),
+ * "Web-scale k-means clustering", which is used by {@link KMeansAlgorithm#MINI_BATCH}.
+ * Each iteration draws a batch of points with probability proportional to their weights,
+ * assigns each of them to its closest center, and then moves each center toward the
+ * points assigned to it with a per-center learning rate of one over the number of
+ * points that have been assigned to that center so far.
+ */
+class MiniBatch {
+  private final List<Vector> points;
+  private final double[] cumulativeWeights;
+  private final int batchSize;
+  private final Random random;
+  private final ExecutorService executor;
+  
+  public <V extends Vector> MiniBatch(Collection<Weighted<V>> weighted, int batchSize,
+      Random random, ExecutorService executor) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    this.points = Lists.newArrayListWithCapacity(weighted.size());
+    this.cumulativeWeights = new double[weighted.size() + 1];
+    int i = 0;
+    for (Weighted<V> wv : weighted) {
+      points.add(wv.thing());
+      cumulativeWeights[i + 1] = cumulativeWeights[i] + wv.weight();
+      i++;
+    }
+    this.batchSize = batchSize;
+    this.random = random == null ? new Random() : random;
+    this.executor = executor;
+  }
+  
+  public Centers run(Centers initial, StoppingCriteria stoppingCriteria) {
+    int dimension = initial.get(0).size();
+    double[][] centers = toArrays(initial);
+    double[] counts = new double[centers.length];
+    
+    Centers current = initial, last = null;
+    int iteration = 0;
+    while (!stoppingCriteria.stop(iteration, current, last)) {
+      final List<Vector> batch = sample();
+      final Centers assigning = current;
+      List<int[]> assignments = Chunks.run(batch.size(), executor, new Chunks.Task<int[]>() {
+        @Override
+        public int[] run(int start, int end) {
+          int[] closest = new int[end - start];
+          assigning.assign(batch.subList(start, end), closest, null);
+          return closest;
+        }
+      });
+      int i = 0;
+      for (int[] closest : assignments) {
+        for (int j : closest) {
+          Vector v = batch.get(i++);
+          counts[j] += 1.0;
+          double eta = 1.0 / counts[j];
+          for (int d = 0; d < dimension; d++) {
+            centers[j][d] = (1.0 - eta) * centers[j][d] + eta * v.getQuick(d);
+          }
+        }
+      }
+      last = current;
+      List<Vector> next = Lists.newArrayListWithCapacity(centers.length);
+      for (int j = 0; j < centers.length; j++) {
+        next.add(counts[j] > 0 ? Vectors.of(centers[j]) : last.get(j));
+      }
+      current = new Centers(next);
+      if (current.size() != centers.length) {
+        // Two centers collapsed into the same point, so start the learning rates over
+        centers = toArrays(current);
+        counts = new double[centers.length];
+      }
+      iteration++;
+    }
+    return current;
+  }
+  
+  private static double[][] toArrays(Centers centers) {
+    double[][] arrays = new double[centers.size()][];
+    for (int j = 0; j < arrays.length; j++) {
+      arrays[j] = Vectors.toArray(centers.get(j));
+    }
+    return arrays;
+  }
+  
+  private List<Vector> sample() {
+    List<Vector> batch = Lists.newArrayListWithCapacity(batchSize);
+    double total = cumulativeWeights[cumulativeWeights.length - 1];
+    for (int i = 0; i < batchSize; i++) {
+      int next = Arrays.binarySearch(cumulativeWeights, total * random.nextDouble());
+      int index = (next >= 0) ? Math.min(next, points.size() - 1) : -2 - next;
+      batch.add(points.get(index));
+    }
+    return batch;
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.Vectors;
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class KMeansEvaluationTest {
+  private static double THRESH = 0.001;
+  
+  @Test
+  public void testSeparatedClusters() throws Exception {
+    List<Weighted<Vector>> points = ImmutableList.of(
+        new Weighted<Vector>(Vectors.of(1.0, 1.0), 3L),
+        new Weighted<Vector>(Vectors.of(2.0, 1.0), 3L),
+        new Weighted<Vector>(Vectors.of(4.0, 3.0), 3L),
+        new Weighted<Vector>(Vectors.of(5.0, 4.0), 3L));
+    Centers centers = new Centers(Vectors.of(1.5, 1.0), Vectors.of(4.5, 3.5));
+    KMeansEvaluation eval = new KMeansEvaluation(ImmutableList.of(centers), points,
+        ImmutableList.of(centers));
+    assertEquals(4.5, eval.getTestCenterCosts().get(0), THRESH);
+    assertEquals(4.5, eval.getTrainCosts().get(0), THRESH);
+    assertEquals(1.0, eval.getPredictionStrengths().get(0), THRESH);
+    assertEquals(1.0, eval.getStableClusters().get(0), THRESH);
+    assertEquals(1.0, eval.getStablePoints().get(0), THRESH);
+  }
+  
+  @Test
+  public void testFractionalWeights() throws Exception {
+    List<Weighted<Vector>> points = ImmutableList.of(
+        new Weighted<Vector>(Vectors.of(1.0, 1.0), 3.5),
+        new Weighted<Vector>(Vectors.of(2.0, 1.0), 3.5),
+        new Weighted<Vector>(Vectors.of(4.0, 3.0), 3.5),
+        new Weighted<Vector>(Vectors.of(5.0, 4.0), 3.5));
+    Centers centers = new Centers(Vectors.of(1.5, 1.0), Vectors.of(4.5, 3.5));
+    KMeansEvaluation eval = new KMeansEvaluation(ImmutableList.of(centers), points,
+        ImmutableList.of(centers));
+    // The total number of points only counts the whole part of each weight
+    assertEquals(14.0 / 12.0, eval.getStablePoints().get(0), THRESH);
+  }
+  
+  @Test
+  public void testExecutorMatchesSerial() throws Exception {
+    Random rand = new Random(1729L);
+    List<Weighted<Vector>> points = Lists.newArrayList();
+    for (int i = 0; i < 2 * Chunks.CHUNK_SIZE + 11; i++) {
+      points.add(new Weighted<Vector>(Vectors.of(rand.nextGaussian() + (i % 4),
+          rand.nextGaussian()), 1 + rand.nextInt(3)));
+    }
+    List<Centers> test = Lists.newArrayList(), train = Lists.newArrayList();
+    for (int k = 2; k <= 5; k++) {
+      test.add(KMeansInitStrategy.PLUS_PLUS.apply(points, k, rand));
+      train.add(KMeansInitStrategy.PLUS_PLUS.apply(points, k, rand));
+    }
+    KMeansEvaluation serial = new KMeansEvaluation(test, points, train);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      KMeansEvaluation parallel = new KMeansEvaluation(test, points, train, executor);
+      assertEquals(serial.getPredictionStrengths(), parallel.getPredictionStrengths());
+      assertEquals(serial.getTestCenterCosts(), parallel.getTestCenterCosts());
+      assertEquals(serial.getTrainCosts(), parallel.getTrainCosts());
+      assertEquals(serial.getStableClusters(), parallel.getStableClusters());
+      assertEquals(serial.getStablePoints(), parallel.getStablePoints());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
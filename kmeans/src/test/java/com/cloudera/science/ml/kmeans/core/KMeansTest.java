@@ -15,9 +15,12 @@
 package com.cloudera.science.ml.kmeans.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.mahout.math.Vector;
 import org.junit.Before;
@@ -27,6 +30,7 @@ import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
 public class KMeansTest {
 
@@ -92,4 +96,127 @@ public class KMeansTest {
     assertEquals(new Centers(vec(1.5, 1.0), vec(4.5, 3.5)), done);
   }
   
+  @Test
+  public void testHamerlyConvergence() throws Exception {
+    KMeans hamerly = new KMeans(KMeansInitStrategy.PLUS_PLUS, StoppingCriteria.threshold(1e-6),
+        KMeansAlgorithm.HAMERLY);
+    Centers centers = new Centers(a.thing(), b.thing());
+    assertEquals(new Centers(vec(1.5, 1.0), vec(4.5, 3.5)), hamerly.lloydsAlgorithm(points, centers));
+  }
+  
+  @Test
+  public void testHamerlyMatchesLloyds() throws Exception {
+    List<Weighted<Vector>> random = Lists.newArrayList();
+    for (int i = 0; i < 500; i++) {
+      random.add(new Weighted<Vector>(vec(rand.nextGaussian() + (i % 5), rand.nextGaussian(),
+          3.0 * rand.nextDouble()), 1 + rand.nextInt(3)));
+    }
+    Centers init = KMeansInitStrategy.PLUS_PLUS.apply(random, 8, rand);
+    StoppingCriteria sc = StoppingCriteria.maxIterations(20);
+    Centers lloyds = new KMeans(KMeansInitStrategy.PLUS_PLUS, sc, KMeansAlgorithm.LLOYDS)
+        .lloydsAlgorithm(random, init);
+    Centers hamerly = new KMeans(KMeansInitStrategy.PLUS_PLUS, sc, KMeansAlgorithm.HAMERLY)
+        .lloydsAlgorithm(random, init);
+    assertTrue(lloyds.getSumOfSquaredDistances(hamerly) < 1e-12);
+  }
+  
+  @Test
+  public void testThreadsMatchSerial() throws Exception {
+    List<Weighted<Vector>> random = Lists.newArrayList();
+    for (int i = 0; i < 3 * Chunks.CHUNK_SIZE + 17; i++) {
+      random.add(new Weighted<Vector>(vec(rand.nextGaussian() + (i % 3), rand.nextGaussian()),
+          1 + rand.nextInt(3)));
+    }
+    Centers init = KMeansInitStrategy.RANDOM.apply(random, 5, rand);
+    StoppingCriteria sc = StoppingCriteria.maxIterations(5);
+    for (KMeansAlgorithm algorithm : KMeansAlgorithm.values()) {
+      Centers serial = new KMeans(KMeansInitStrategy.RANDOM, sc, algorithm, 1)
+          .lloydsAlgorithm(random, init, new Random(11L));
+      Centers threaded = new KMeans(KMeansInitStrategy.RANDOM, sc, algorithm, 4)
+          .lloydsAlgorithm(random, init, new Random(11L));
+      assertEquals(serial, threaded);
+    }
+  }
+  
+  @Test
+  public void testParallelPlusPlusInit() throws Exception {
+    List<Weighted<Vector>> random = Lists.newArrayList();
+    for (int i = 0; i < 2 * Chunks.CHUNK_SIZE + 5; i++) {
+      random.add(new Weighted<Vector>(vec(rand.nextGaussian(), rand.nextGaussian())));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Centers serial = KMeansInitStrategy.PLUS_PLUS.apply(random, 20, new Random(17L));
+      Centers parallel = KMeansInitStrategy.PLUS_PLUS.apply(random, 20, new Random(17L), executor);
+      assertEquals(20, serial.size());
+      assertEquals(serial, parallel);
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
+  @Test
+  public void testAfkMc2Init() throws Exception {
+    Centers init = KMeansInitStrategy.AFK_MC2.apply(points, 2, rand);
+    assertEquals(2, init.size());
+    for (Vector v : init) {
+      assertTrue(v.equals(a.thing()) || v.equals(b.thing()) || v.equals(c.thing()) ||
+          v.equals(d.thing()));
+    }
+    Centers done = kmeans.lloydsAlgorithm(points, init);
+    assertEquals(new Centers(vec(1.5, 1.0), vec(4.5, 3.5)), done);
+  }
+  
+  @Test
+  public void testAfkMc2ChoosesDistinctPoints() throws Exception {
+    // Once the heavy point and the two far away points are chosen, the last point has almost
+    // no proposal mass, so the chains almost always end on a point that was already chosen
+    List<Weighted<Vector>> skewed = ImmutableList.of(
+        new Weighted<Vector>(vec(0.0, 0.0), 1000000),
+        new Weighted<Vector>(vec(0.001, 0.0), 1),
+        new Weighted<Vector>(vec(100.0, 0.0), 1),
+        new Weighted<Vector>(vec(0.0, 100.0), 1));
+    for (long seed = 0; seed < 10; seed++) {
+      assertEquals(4, KMeansInitStrategy.AFK_MC2.apply(skewed, 4, new Random(seed)).size());
+      // Never more centers than there are distinct points
+      assertEquals(4, KMeansInitStrategy.AFK_MC2.apply(skewed, 10, new Random(seed)).size());
+    }
+  }
+  
+  @Test
+  public void testMiniBatch() throws Exception {
+    List<Weighted<Vector>> random = Lists.newArrayList();
+    for (int i = 0; i < 2000; i++) {
+      double offset = 10.0 * (i % 2);
+      random.add(new Weighted<Vector>(vec(offset + 0.1 * rand.nextGaussian(),
+          offset + 0.1 * rand.nextGaussian()), 1 + rand.nextInt(3)));
+    }
+    Centers init = new Centers(random.get(0).thing(), random.get(1).thing());
+    KMeans miniBatch = new KMeans(KMeansInitStrategy.PLUS_PLUS, StoppingCriteria.maxIterations(20),
+        KMeansAlgorithm.MINI_BATCH, 1, 100);
+    Centers done = miniBatch.lloydsAlgorithm(random, init, new Random(5L));
+    assertEquals(2, done.size());
+    assertTrue(done.getSumOfSquaredDistances(new Centers(vec(0.0, 0.0), vec(10.0, 10.0))) < 0.01);
+  }
+  
+  @Test
+  public void testWarmStartSweep() throws Exception {
+    List<Centers> sweep = kmeans.sweep(points, ImmutableList.of(1, 2, 4), new Random(3L));
+    assertEquals(3, sweep.size());
+    assertEquals(new Centers(vec(3.0, 2.25)), sweep.get(0));
+    assertEquals(new Centers(vec(1.5, 1.0), vec(4.5, 3.5)), sweep.get(1));
+    assertEquals(4, sweep.get(2).size());
+    for (Vector v : sweep.get(2)) {
+      assertTrue(v.equals(a.thing()) || v.equals(b.thing()) || v.equals(c.thing()) ||
+          v.equals(d.thing()));
+    }
+  }
+  
+  @Test
+  public void testExtendKeepsCenters() throws Exception {
+    Centers start = new Centers(a.thing());
+    Centers extended = KMeansInitStrategy.extend(points, start, 3, new Random(9L), null);
+    assertEquals(3, extended.size());
+    assertEquals(a.thing(), extended.get(0));
+  }
 }
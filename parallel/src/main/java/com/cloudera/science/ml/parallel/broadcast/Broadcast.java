@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.parallel.broadcast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.crunch.CrunchRuntimeException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * <p>A handle to a read-only value that is needed by every task of a job, such as a
+ * large model or summary. Instead of being Java-serialized into the job configuration
+ * along with the {@code DoFn} that uses it, the value is written once to the filesystem
+ * in the binary form defined by its {@link Codec} and shipped to the tasks via the
+ * distributed cache.
+ * 
+ * <p>A {@code DoFn} that uses a {@code Broadcast} should call {@link #configure(Configuration)}
+ * from its own {@code configure} method and {@link #get(Configuration)} from its
+ * {@code initialize} method. The value is loaded the first time that it is needed by a task,
+ * and all of the tasks that run in the same JVM share a single loaded copy of it. When the
+ * {@code DoFn} is not serialized (e.g., in a {@code MemPipeline}), the original value is
+ * used directly.
+ */
+public class Broadcast<T> implements Serializable {
+
+  public static final String TMP_DIR = "crunch.tmp.dir";
+  
+  // The values that have been loaded by this JVM, keyed by path
+  private static final Cache<String, Object> LOADED = CacheBuilder.newBuilder()
+      .softValues()
+      .build();
+  
+  private final Codec<T> codec;
+  private transient T value;
+  private String path;
+  
+  public static <T extends Serializable> Broadcast<T> of(T value) {
+    return of(value, new JavaSerializationCodec<T>());
+  }
+  
+  public static <T> Broadcast<T> of(T value, Codec<T> codec) {
+    return new Broadcast<T>(value, codec);
+  }
+  
+  private Broadcast(T value, Codec<T> codec) {
+    this.value = Preconditions.checkNotNull(value);
+    this.codec = codec;
+  }
+  
+  /**
+   * Writes the value to a temporary file (if it has not been written already) and
+   * adds that file to the distributed cache of the job with the given configuration.
+   */
+  public void configure(Configuration conf) {
+    try {
+      if (path == null) {
+        Path p = new Path(conf.get(TMP_DIR, "/tmp"), "broadcast-" + UUID.randomUUID());
+        FileSystem fs = p.getFileSystem(conf);
+        p = fs.makeQualified(p);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(p)));
+        try {
+          codec.write(value, out);
+        } finally {
+          out.close();
+        }
+        fs.deleteOnExit(p);
+        path = p.toString();
+      }
+      DistributedCache.addCacheFile(new Path(path).toUri(), conf);
+    } catch (IOException e) {
+      throw new CrunchRuntimeException(e);
+    }
+  }
+  
+  /**
+   * Returns the value, loading it if this is the first time it is needed in this JVM.
+   */
+  public T get(final Configuration conf) {
+    if (value == null) {
+      Preconditions.checkState(path != null, "Broadcast value was not configured");
+      try {
+        value = (T) LOADED.get(path, new Callable<Object>() {
+          @Override
+          public Object call() throws IOException {
+            return read(conf);
+          }
+        });
+      } catch (ExecutionException e) {
+        throw new CrunchRuntimeException(e.getCause());
+      }
+    }
+    return value;
+  }
+  
+  /**
+   * Drops this handle's reference to a value that was loaded by {@link #get(Configuration)},
+   * so that a task that uses several large values one after another does not need to hold
+   * all of them in memory at once. The value is loaded again if it is needed later.
+   */
+  public void release() {
+    if (path != null) {
+      value = null;
+    }
+  }
+
+  private T read(Configuration conf) throws IOException {
+    Path p = new Path(path);
+    FileSystem fs = p.getFileSystem(conf);
+    Path[] localFiles = DistributedCache.getLocalCacheFiles(conf);
+    if (localFiles != null) {
+      for (Path local : localFiles) {
+        if (local.getName().equals(p.getName())) {
+          p = local;
+          fs = FileSystem.getLocal(conf);
+          break;
+        }
+      }
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(fs.open(p)));
+    try {
+      return codec.read(in);
+    } finally {
+      in.close();
+    }
+  }
+}
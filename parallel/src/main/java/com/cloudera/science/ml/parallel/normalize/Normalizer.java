@@ -25,12 +25,14 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.crunch.MapFn;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.types.PType;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.mahout.math.NamedVector;
 import org.apache.mahout.math.Vector;
 
 import com.cloudera.science.ml.core.records.Record;
 import com.cloudera.science.ml.core.records.vectors.VectorRecord;
 import com.cloudera.science.ml.core.vectors.Vectors;
+import com.cloudera.science.ml.parallel.broadcast.Broadcast;
 import com.cloudera.science.ml.parallel.summary.Summary;
 import com.cloudera.science.ml.parallel.summary.SummaryStats;
 import com.google.common.collect.Maps;
@@ -107,56 +109,77 @@ public class Normalizer implements Serializable {
   }
   
   public <V extends Vector> PCollection<V> apply(PCollection<Record> records, PType<V> ptype) {
-    return records.parallelDo("standardize", new StandardizeFn<V>(), ptype);
+    return records.parallelDo("standardize", new StandardizeFn<V>(Broadcast.of(this)), ptype);
   }
   
-  private class StandardizeFn<V extends Vector> extends MapFn<Record, V> {
+  private static class StandardizeFn<V extends Vector> extends MapFn<Record, V> {
+    private final Broadcast<Normalizer> broadcast;
+    private transient Normalizer normalizer;
+    
+    public StandardizeFn(Broadcast<Normalizer> broadcast) {
+      this.broadcast = broadcast;
+    }
+    
+    @Override
+    public void configure(Configuration conf) {
+      broadcast.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      this.normalizer = broadcast.get(getConfiguration());
+    }
+    
     @Override
     public V map(Record record) {
-      double[] values = new double[record.getSpec().size() + expansion];
-      int offset = 0;
-      for (int i = 0; i < record.getSpec().size(); i++) {
-        if (idColumn != i && !ignoredColumns.contains(i)) {
-          SummaryStats ss = summary.getStats(i);
-          if (ss == null || ss.isEmpty()) {
-            values[offset] = record.getAsDouble(i);
-            offset++;
-          } else if (ss.isNumeric()) {
-            Transform t = defaultTransform;
-            if (transforms.containsKey(i)) {
-              t = transforms.get(i);
-            }
-            double n = record.getAsDouble(i);
-            values[offset] = t.apply(n, summary.getRecordCount(), ss);
-            offset++;
+      return (V) normalizer.normalize(record);
+    }
+  }
+  
+  private Vector normalize(Record record) {
+    double[] values = new double[record.getSpec().size() + expansion];
+    int offset = 0;
+    for (int i = 0; i < record.getSpec().size(); i++) {
+      if (idColumn != i && !ignoredColumns.contains(i)) {
+        SummaryStats ss = summary.getStats(i);
+        if (ss == null || ss.isEmpty()) {
+          values[offset] = record.getAsDouble(i);
+          offset++;
+        } else if (ss.isNumeric()) {
+          Transform t = defaultTransform;
+          if (transforms.containsKey(i)) {
+            t = transforms.get(i);
+          }
+          double n = record.getAsDouble(i);
+          values[offset] = t.apply(n, summary.getRecordCount(), ss);
+          offset++;
+        } else {
+          int index = ss.index(record.getAsString(i));
+          if (index < 0) {
+            LOG.warn(String.format("Unknown value encountered for field %d: '%s'",
+                i, record.getAsString(i)));
           } else {
-            int index = ss.index(record.getAsString(i));
-            if (index < 0) {
-              LOG.warn(String.format("Unknown value encountered for field %d: '%s'",
-                  i, record.getAsString(i)));
-            } else {
-              values[offset + index] = 1.0;
-            }
-            offset += ss.numLevels();
+            values[offset + index] = 1.0;
           }
+          offset += ss.numLevels();
         }
       }
-      
-      Vector v = null;
-      if (record instanceof VectorRecord) {
-        v = ((VectorRecord) record).getVector().like();
-      } else if (sparse) {
-        v = Vectors.sparse(values.length);
-      } else {
-        v = Vectors.dense(values.length);
-      }
-      v.assign(values);
-      
-      if (idColumn >= 0) {
-        v = new NamedVector(v, record.getAsString(idColumn));
-      }
-      
-      return (V) v;
     }
+    
+    Vector v = null;
+    if (record instanceof VectorRecord) {
+      v = ((VectorRecord) record).getVector().like();
+    } else if (sparse) {
+      v = Vectors.sparse(values.length);
+    } else {
+      v = Vectors.dense(values.length);
+    }
+    v.assign(values);
+    
+    if (idColumn >= 0) {
+      v = new NamedVector(v, record.getAsString(idColumn));
+    }
+    
+    return v;
   }
 }
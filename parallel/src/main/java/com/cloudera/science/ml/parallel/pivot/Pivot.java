@@ -14,6 +14,7 @@
  */
 package com.cloudera.science.ml.parallel.pivot;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -24,15 +25,18 @@ import org.apache.crunch.PCollection;
 import org.apache.crunch.Pair;
 import org.apache.crunch.types.PTableType;
 import org.apache.crunch.types.avro.Avros;
+import org.apache.hadoop.conf.Configuration;
 
 import com.cloudera.science.ml.core.records.FieldSpec;
 import com.cloudera.science.ml.core.records.Record;
 import com.cloudera.science.ml.core.records.RecordSpec;
 import com.cloudera.science.ml.core.records.SimpleRecord;
 import com.cloudera.science.ml.core.records.Spec;
+import com.cloudera.science.ml.parallel.broadcast.Broadcast;
 import com.cloudera.science.ml.parallel.summary.Summary;
 import com.cloudera.science.ml.parallel.summary.SummaryStats;
 import com.cloudera.science.ml.parallel.types.MLRecords;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
@@ -91,7 +95,7 @@ public class Pivot {
         .groupByKey()
         .combineValues(new MapAggregator())
         .parallelDo("makerecord",
-            new PivotFinishFn(outSpec, levels, agg),
+            new PivotFinishFn(outSpec, Broadcast.of(Lists.newArrayList(levels)), agg),
             MLRecords.record(outSpec));
   }
   
@@ -152,15 +156,26 @@ public class Pivot {
   
   private static class PivotFinishFn extends MapFn<Pair<Record, Map<String, Stat>>, Record> {
     private Spec spec;
-    private List<String> levels;
+    private Broadcast<ArrayList<String>> broadcast;
     private Agg agg;
+    private transient List<String> levels;
     
-    public PivotFinishFn(Spec spec, List<String> levels, Agg agg) {
+    public PivotFinishFn(Spec spec, Broadcast<ArrayList<String>> broadcast, Agg agg) {
       this.spec = spec;
-      this.levels = levels;
+      this.broadcast = broadcast;
       this.agg = agg;
     }
     
+    @Override
+    public void configure(Configuration conf) {
+      broadcast.configure(conf);
+    }
+    
+    @Override
+    public void initialize() {
+      this.levels = broadcast.get(getConfiguration());
+    }
+    
     @Override
     public Record map(Pair<Record, Map<String, Stat>> p) {
       Record r = new SimpleRecord(spec);
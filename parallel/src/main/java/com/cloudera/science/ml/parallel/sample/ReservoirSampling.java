@@ -138,7 +138,7 @@ public class ReservoirSampling {
       int id = input.first();
       Pair<T, N> p = input.second();
       double weight = p.second().doubleValue();
-      if (weight > 0.0) {
+      if (weight > 0.0 && sampleSizes[id] > 0) {
         double score = Math.log(random.nextDouble()) / weight;
         SortedMap<Double, T> reservoir = reservoirs.get(id);
         if (reservoir.size() < sampleSizes[id]) { 
@@ -182,6 +182,9 @@ public class ReservoirSampling {
     public void process(Pair<Integer, Iterable<Pair<Double, T>>> input,
         Emitter<Pair<Integer, Pair<Double, T>>> emitter) {
       SortedMap<Double, T> reservoir = reservoirs.get(input.first());
+      if (sampleSizes[input.first()] == 0) {
+        return;
+      }
       for (Pair<Double, T> p : input.second()) {
         if (reservoir.size() < sampleSizes[input.first()]) { 
           reservoir.put(p.first(), p.second());        
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.parallel.types;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import org.apache.crunch.MapFn;
+import org.apache.crunch.PCollection;
+import org.apache.crunch.Pair;
+import org.apache.crunch.types.PType;
+import org.apache.crunch.types.PTypeFamily;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Caches fold-tagged vectors in a compact binary form for algorithms that make many passes
+ * over the same data. Each record is packed as the fold id, the dimension of the vector,
+ * the length and UTF-8 bytes of the vector's name (if any), and then the values of the vector.
+ * The values are written as a dense, fixed-width array of doubles, so that reading them back
+ * does not involve any of the per-element decoding work of the original Avro or SequenceFile
+ * input, unless the vector is sparse and has few enough non-zero values that writing each of
+ * them as an (index, value) pair takes less space, in which case the pairs are written instead.
+ */
+public final class PackedVectors {
+
+  /**
+   * Writes the given fold-tagged vectors out in the packed form and returns a
+   * {@code PCollection} that reads them back from it. Every pass over the returned
+   * {@code PCollection} after the first one reads the cached copy instead of the input.
+   *
+   * @param folds The fold-tagged vectors
+   * @return The same fold-tagged vectors, read from the cache
+   */
+  public static <V extends Vector> PCollection<Pair<Integer, Vector>> cache(
+      PCollection<Pair<Integer, V>> folds) {
+    PTypeFamily ptf = folds.getTypeFamily();
+    PType<Vector> vtype = (PType<Vector>) folds.getPType().getSubTypes().get(1);
+    PCollection<ByteBuffer> packed = folds.parallelDo("pack", new PackFn<V>(), ptf.bytes());
+    packed.materialize();
+    return packed.parallelDo("unpack", new UnpackFn(), ptf.pairs(ptf.ints(), vtype));
+  }
+
+  // Written in place of the number of (index, value) pairs when the values are dense
+  private static final int DENSE = -1;
+
+  static <V extends Vector> ByteBuffer pack(int fold, V vec) {
+    byte[] id = new byte[0];
+    if (vec instanceof NamedVector) {
+      id = ((NamedVector) vec).getName().getBytes(Charsets.UTF_8);
+    }
+    int size = vec.size();
+    int header = 16 + id.length;
+    ByteBuffer buf;
+    if (!vec.isDense() && isSparseSmaller(vec.getNumNondefaultElements(), size)) {
+      buf = ByteBuffer.allocate(header + 12 * vec.getNumNondefaultElements());
+      buf.putInt(fold).putInt(size).putInt(id.length).put(id);
+      int countOffset = buf.position();
+      buf.putInt(0);
+      int count = 0;
+      Iterator<Vector.Element> iter = vec.iterateNonZero();
+      while (iter.hasNext()) {
+        Vector.Element e = iter.next();
+        buf.putInt(e.index()).putDouble(e.get());
+        count++;
+      }
+      buf.putInt(countOffset, count);
+      buf.flip();
+    } else {
+      buf = ByteBuffer.allocate(header + 8 * size);
+      buf.putInt(fold).putInt(size).putInt(id.length).put(id).putInt(DENSE);
+      int offset = buf.position();
+      if (vec.isDense()) {
+        for (int i = 0; i < size; i++) {
+          buf.putDouble(offset + 8 * i, vec.getQuick(i));
+        }
+      } else {
+        Iterator<Vector.Element> iter = vec.iterateNonZero();
+        while (iter.hasNext()) {
+          Vector.Element e = iter.next();
+          buf.putDouble(offset + 8 * e.index(), e.get());
+        }
+      }
+      buf.rewind();
+    }
+    return buf;
+  }
+
+  /**
+   * Returns true if {@code nonZeros} (index, value) pairs take up less space than
+   * {@code size} dense values.
+   */
+  static boolean isSparseSmaller(int nonZeros, int size) {
+    return 12L * nonZeros < 8L * size;
+  }
+
+  static Pair<Integer, Vector> unpack(ByteBuffer input) {
+    ByteBuffer buf = input.duplicate();
+    int fold = buf.getInt();
+    int size = buf.getInt();
+    byte[] id = new byte[buf.getInt()];
+    buf.get(id);
+    int count = buf.getInt();
+    Vector v;
+    if (count == DENSE) {
+      double[] values = new double[size];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = buf.getDouble();
+      }
+      v = new DenseVector(values, true);
+    } else {
+      v = new RandomAccessSparseVector(size, count);
+      for (int i = 0; i < count; i++) {
+        int index = buf.getInt();
+        v.setQuick(index, buf.getDouble());
+      }
+    }
+    if (id.length > 0) {
+      v = new NamedVector(v, new String(id, Charsets.UTF_8));
+    }
+    return Pair.of(fold, v);
+  }
+
+  private static class PackFn<V extends Vector> extends MapFn<Pair<Integer, V>, ByteBuffer> {
+    @Override
+    public ByteBuffer map(Pair<Integer, V> input) {
+      return pack(input.first(), input.second());
+    }
+  }
+
+  private static class UnpackFn extends MapFn<ByteBuffer, Pair<Integer, Vector>> {
+    @Override
+    public Pair<Integer, Vector> map(ByteBuffer input) {
+      return unpack(input);
+    }
+  }
+
+  private PackedVectors() {}
+}
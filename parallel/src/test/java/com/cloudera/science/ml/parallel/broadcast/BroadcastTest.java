@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.parallel.broadcast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class BroadcastTest {
+
+  @Test
+  public void testInMemory() throws Exception {
+    ArrayList<String> value = Lists.newArrayList("a", "b");
+    assertSame(value, Broadcast.of(value).get(null));
+  }
+  
+  @Test
+  public void testJavaSerializationCodec() throws Exception {
+    JavaSerializationCodec<ArrayList<String>> codec = new JavaSerializationCodec<ArrayList<String>>();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    codec.write(Lists.newArrayList("a", "b"), new DataOutputStream(baos));
+    assertEquals(Lists.newArrayList("a", "b"), codec.read(
+        new DataInputStream(new ByteArrayInputStream(baos.toByteArray()))));
+  }
+  
+  @Test
+  public void testReleaseInMemory() throws Exception {
+    ArrayList<String> value = Lists.newArrayList("a", "b");
+    Broadcast<ArrayList<String>> b = Broadcast.of(value);
+    // A value that was never written out can not be loaded again, so it is kept
+    b.release();
+    assertSame(value, b.get(null));
+  }
+  
+  @Test
+  public void testConfigure() throws Exception {
+    File tmpDir = File.createTempFile("broadcast", "");
+    tmpDir.delete();
+    tmpDir.mkdir();
+    tmpDir.deleteOnExit();
+    Configuration conf = new Configuration();
+    conf.set(Broadcast.TMP_DIR, tmpDir.getAbsolutePath());
+    
+    ArrayList<String> value = Lists.newArrayList("a", "b");
+    Broadcast<ArrayList<String>> b = Broadcast.of(value);
+    b.configure(conf);
+    File[] written = written(tmpDir);
+    assertEquals(1, written.length);
+    assertEquals(1, DistributedCache.getCacheFiles(conf).length);
+    assertEquals(written[0].getName(),
+        new File(DistributedCache.getCacheFiles(conf)[0].getPath()).getName());
+    
+    // Configuring the same handle again reuses the file that was already written
+    b.configure(new Configuration(conf));
+    assertEquals(1, written(tmpDir).length);
+    
+    // The handles that tasks deserialize read the value back from the file, and all of
+    // the handles in the same JVM share a single copy of it
+    Broadcast<ArrayList<String>> task1 = serialize(b);
+    Broadcast<ArrayList<String>> task2 = serialize(b);
+    ArrayList<String> loaded = task1.get(conf);
+    assertEquals(value, loaded);
+    assertNotSame(value, loaded);
+    assertSame(loaded, task2.get(conf));
+    
+    // A released value is loaded again on demand, from the shared copy while it is in use
+    task1.release();
+    assertSame(loaded, task1.get(conf));
+  }
+  
+  private static File[] written(File dir) {
+    // Leaves out the checksum files that the local filesystem writes alongside them
+    return dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith("broadcast-");
+      }
+    });
+  }
+  
+  private static <T> Broadcast<T> serialize(Broadcast<T> b) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(baos);
+    out.writeObject(b);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    return (Broadcast<T>) in.readObject();
+  }
+}
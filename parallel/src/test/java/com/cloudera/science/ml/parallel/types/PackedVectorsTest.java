@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.parallel.types;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.crunch.Pair;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import com.cloudera.science.ml.core.vectors.Vectors;
+
+public class PackedVectorsTest {
+
+  @Test
+  public void testDense() throws Exception {
+    Pair<Integer, Vector> p = PackedVectors.unpack(PackedVectors.pack(3, Vectors.of(1.0, -2.5)));
+    assertEquals(3, p.first().intValue());
+    assertEquals(Vectors.of(1.0, -2.5), p.second());
+  }
+
+  @Test
+  public void testSparse() throws Exception {
+    Vector v = Vectors.sparse(5);
+    v.setQuick(1, 2.0);
+    v.setQuick(4, 7.0);
+    ByteBuffer packed = PackedVectors.pack(0, v);
+    // Two (index, value) pairs after the header instead of five doubles
+    assertEquals(16 + 2 * 12, packed.remaining());
+    Pair<Integer, Vector> p = PackedVectors.unpack(packed);
+    assertFalse(p.second().isDense());
+    assertEquals(Vectors.of(0.0, 2.0, 0.0, 0.0, 7.0), p.second());
+  }
+
+  @Test
+  public void testMostlyNonZeroSparse() throws Exception {
+    Vector v = Vectors.sparse(3);
+    v.setQuick(0, 1.0);
+    v.setQuick(2, 3.0);
+    ByteBuffer packed = PackedVectors.pack(2, v);
+    assertEquals(16 + 3 * 8, packed.remaining());
+    Pair<Integer, Vector> p = PackedVectors.unpack(packed);
+    assertEquals(2, p.first().intValue());
+    assertEquals(Vectors.of(1.0, 0.0, 3.0), p.second());
+  }
+
+  @Test
+  public void testNamedSparse() throws Exception {
+    Vector v = Vectors.sparse(10);
+    v.setQuick(9, -1.0);
+    Pair<Integer, Vector> p = PackedVectors.unpack(
+        PackedVectors.pack(0, new NamedVector(v, "bar")));
+    assertEquals("bar", ((NamedVector) p.second()).getName());
+    assertEquals(v, ((NamedVector) p.second()).getDelegate());
+  }
+
+  @Test
+  public void testNamed() throws Exception {
+    Pair<Integer, Vector> p = PackedVectors.unpack(
+        PackedVectors.pack(1, Vectors.named("foo", 1.0, 2.0)));
+    assertTrue(p.second() instanceof NamedVector);
+    assertEquals("foo", ((NamedVector) p.second()).getName());
+    assertEquals(Vectors.of(1.0, 2.0), ((NamedVector) p.second()).getDelegate());
+  }
+}
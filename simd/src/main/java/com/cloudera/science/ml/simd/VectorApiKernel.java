@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.simd;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import com.cloudera.science.ml.core.vectors.DenseKernel;
+
+/**
+ * A {@link DenseKernel} that computes dot products with the widest SIMD registers that the
+ * CPU supports, using the JDK's incubating Vector API. {@code DenseKernel.get()} picks it up
+ * automatically when this class is on the classpath and the JVM was started with
+ * {@code --add-modules jdk.incubator.vector}.
+ */
+public class VectorApiKernel extends DenseKernel {
+
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+  
+  @Override
+  public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+    DoubleVector sum = DoubleVector.zero(SPECIES);
+    int i = 0;
+    int bound = SPECIES.loopBound(length);
+    for (; i < bound; i += SPECIES.length()) {
+      DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+      DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+      sum = va.fma(vb, sum);
+    }
+    double result = sum.reduceLanes(VectorOperators.ADD);
+    for (; i < length; i++) {
+      result += a[aOffset + i] * b[bOffset + i];
+    }
+    return result;
+  }
+}
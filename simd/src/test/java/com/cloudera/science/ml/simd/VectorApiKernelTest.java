@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.simd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.cloudera.science.ml.core.vectors.DenseKernel;
+
+public class VectorApiKernelTest {
+  
+  @Test
+  public void testMatchesScalar() throws Exception {
+    DenseKernel kernel = new VectorApiKernel();
+    Random rand = new Random(1729L);
+    double[] a = new double[101];
+    double[] b = new double[101];
+    for (int i = 0; i < a.length; i++) {
+      a[i] = rand.nextGaussian();
+      b[i] = rand.nextGaussian();
+    }
+    for (int length = 0; length < 40; length++) {
+      double expected = DenseKernel.SCALAR.dot(a, 3, b, 7, length);
+      assertEquals(expected, kernel.dot(a, 3, b, 7, length), 1e-9);
+    }
+  }
+  
+  @Test
+  public void testLoaded() throws Exception {
+    assertTrue(DenseKernel.get() instanceof VectorApiKernel);
+  }
+}